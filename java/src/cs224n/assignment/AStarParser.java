@@ -0,0 +1,490 @@
+package cs224n.assignment;
+
+import cs224n.ling.Tree;
+import cs224n.util.Index;
+import cs224n.util.IndexedPriorityQueue;
+import java.util.*;
+
+/**
+ * Agenda-based best-first (A*) parser.  Edges are popped in order of
+ * inside score plus an admissible estimate of their outside score, and
+ * parsing stops as soon as ROOT over the whole sentence is popped, so
+ * the result has the exact Viterbi score of the same model PCFGParser
+ * uses (ties may resolve to a different tree).
+ *
+ * The outside estimate of symbol X over [start, end) is built on the SX
+ * context summary of Klein and Manning: the best outside score X can
+ * have with start words to its left and numWords - end to its right,
+ * over any words at all.  It is computed from the grammar alone, once
+ * per context size, by an inside pass over span lengths and an outside
+ * pass over context sizes.  Two such tables are kept.  In one, each
+ * word scores its tag's best score over the whole lexicon.  In the
+ * other, words score nothing, and the best tag score of each actual
+ * word outside the span is added per sentence.  The smaller of the two
+ * is used.  Both are admissible and consistent, so the first time an
+ * edge is popped it is final.
+ */
+public class AStarParser implements Parser {
+    private static final String ROOT = "ROOT";
+    private static final int LEXICAL = -1;
+    private static final int UNARY = -2;
+
+    private Lexicon lexicon;
+    private CompiledGrammar compiledGrammar;
+    private int rootSymbol;
+    private int[] tagSymbols;
+    private int[] tagIds;
+    private String[] tags;
+    private double[] contextScore;
+
+    /* Longest context (words outside a span) given an SX estimate; wider
+     * contexts fall back to the sentence-specific bound alone. */
+    static final int MAX_SX_CONTEXT = 60;
+
+    // sxOutside[(left * (sxContext + 1) + right) * numSymbols + symbol]
+    // is the SX estimate for left + right <= sxContext with lexicon-best
+    // words, and sxRuleOutside the same with words scoring zero
+    private int sxContext = -1;
+    private double[] sxOutside;
+    private double[] sxRuleOutside;
+
+    private long edgesBuilt;
+    private long edgesPopped;
+
+    // Per-sentence edge state, indexed like the PCFGParser chart.
+    private int numWords;
+    private int numSymbols;
+    private double[] inside = new double[0];
+    private boolean[] finished = new boolean[0];
+    private int[] backSplit = new int[0];
+    private int[] backLeft = new int[0];
+    private int[] backRight = new int[0];
+    private double[] outsideWords;
+    private int[] cellStarts;
+    private int[] cellEnds;
+    // offset of each cell's context in sxOutside, or -1 if it has none
+    private int[] cellContexts;
+    private IndexedPriorityQueue agenda = new IndexedPriorityQueue(0);
+
+    // Finished edges by position and symbol: the ends of those starting
+    // at a position, and the starts of those ending there, each list
+    // numWords long at (position * numSymbols + symbol) * numWords.
+    private int[] endsFrom = new int[0];
+    private int[] numEndsFrom = new int[0];
+    private int[] startsTo = new int[0];
+    private int[] numStartsTo = new int[0];
+
+    /* Chart entries (symbols over a span) given a score since the last
+     * resetStatistics(), counted as PCFGParser.getEdgesBuilt() counts
+     * them, so the two parsers can be compared directly. */
+    public long getEdgesBuilt() {
+        return edgesBuilt;
+    }
+
+    /* Edges popped from the agenda, and so made final, since the last
+     * resetStatistics(). */
+    public long getEdgesPopped() {
+        return edgesPopped;
+    }
+
+    public void resetStatistics() {
+        edgesBuilt = 0;
+        edgesPopped = 0;
+    }
+
+    public void train(List<Tree<String>> trainTrees) {
+        List<Tree<String>> annotatedTrees = new ArrayList<Tree<String>>();
+        for (Tree<String> trainTree : trainTrees) {
+            annotatedTrees.add(TreeAnnotations.annotateTree(trainTree));
+        }
+        lexicon = new Lexicon(annotatedTrees);
+        compiledGrammar = new Grammar(annotatedTrees).compile();
+        Index<String> symbols = compiledGrammar.getSymbols();
+        rootSymbol = symbols.indexOf(ROOT);
+        List<String> knownTags = new ArrayList<String>();
+        for (String tag : lexicon.getAllTags()) {
+            if (symbols.contains(tag))
+                knownTags.add(tag);
+        }
+        Collections.sort(knownTags);
+        tags = knownTags.toArray(new String[knownTags.size()]);
+        tagSymbols = new int[tags.length];
+        tagIds = new int[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            tagSymbols[i] = symbols.indexOf(tags[i]);
+            tagIds[i] = lexicon.getTagIndex().indexOf(tags[i]);
+        }
+        contextScore = computeContextScores();
+        sxContext = -1;
+        sxOutside = null;
+        sxRuleOutside = null;
+    }
+
+    /* Best log product of rule scores along any path from ROOT down to
+     * each symbol.  Rule scores are never positive, so a best-first
+     * search from ROOT settles each symbol the first time it is popped. */
+    private double[] computeContextScores() {
+        int numSymbols = compiledGrammar.numSymbols();
+        double[] best = new double[numSymbols];
+        boolean[] settled = new boolean[numSymbols];
+        Arrays.fill(best, Double.NEGATIVE_INFINITY);
+        if (rootSymbol < 0)
+            return best;
+        CompiledGrammar.BinaryRuleTable binaryRules = compiledGrammar.binaryByParent;
+        CompiledGrammar.UnaryRuleTable unaryRules = compiledGrammar.unaryByParent;
+        IndexedPriorityQueue queue = new IndexedPriorityQueue(numSymbols);
+        best[rootSymbol] = 0.0;
+        queue.add(rootSymbol, 0.0);
+        while (!queue.isEmpty()) {
+            int parent = queue.pop();
+            settled[parent] = true;
+            for (int r = binaryRules.start(parent); r < binaryRules.end(parent); r++) {
+                double score = best[parent] + binaryRules.logScore[r];
+                relaxContext(best, settled, queue, binaryRules.left[r], score);
+                relaxContext(best, settled, queue, binaryRules.right[r], score);
+            }
+            for (int r = unaryRules.start(parent); r < unaryRules.end(parent); r++) {
+                relaxContext(best, settled, queue, unaryRules.child[r],
+                             best[parent] + unaryRules.logScore[r]);
+            }
+        }
+        return best;
+    }
+
+    private static void relaxContext(double[] best, boolean[] settled,
+                                     IndexedPriorityQueue queue, int symbol, double score) {
+        if (!settled[symbol] && score > best[symbol]) {
+            best[symbol] = score;
+            queue.promote(symbol, score);
+        }
+    }
+
+    /* Builds both SX tables for contexts of up to maxContext words. */
+    private void computeSXEstimates(int maxContext) {
+        sxOutside = computeSXOutside(maxContext, lexicon.getBestLogScores());
+        sxRuleOutside = computeSXOutside(maxContext, new double[lexicon.getTagIndex().size()]);
+        sxContext = maxContext;
+    }
+
+    /* The SX outside scores for contexts of up to maxContext words, with
+     * each word scoring wordScores[tag id] for its tag.  sxInside[n] is
+     * the best inside score of each symbol over n such words, with unary
+     * chains applied through the closure.  The outside score of a symbol
+     * with left and right context is then the best over binary parents
+     * P -> X Y (or Y X) of P's outside score over the wider context, the
+     * rule, and Y's inside score over the words it adds, again closed
+     * under unary chains; contexts are visited smallest first. */
+    private double[] computeSXOutside(int maxContext, double[] wordScores) {
+        int numSymbols = compiledGrammar.numSymbols();
+        CompiledGrammar.BinaryRuleTable byLeft = compiledGrammar.binaryByLeft;
+        CompiledGrammar.BinaryRuleTable byParent = compiledGrammar.binaryByParent;
+        double[][] sxInside = new double[maxContext + 1][];
+        double[] base = new double[numSymbols];
+        for (int length = 1; length <= maxContext; length++) {
+            Arrays.fill(base, Double.NEGATIVE_INFINITY);
+            if (length == 1) {
+                for (int t = 0; t < tags.length; t++) {
+                    base[tagSymbols[t]] = wordScores[tagIds[t]];
+                }
+            }
+            for (int split = 1; split < length; split++) {
+                double[] leftInside = sxInside[split];
+                double[] rightInside = sxInside[length - split];
+                for (int left = 0; left < numSymbols; left++) {
+                    if (leftInside[left] == Double.NEGATIVE_INFINITY)
+                        continue;
+                    for (int r = byLeft.start(left); r < byLeft.end(left); r++) {
+                        double score = leftInside[left] + rightInside[byLeft.right[r]]
+                            + byLeft.logScore[r];
+                        if (score > base[byLeft.parent[r]])
+                            base[byLeft.parent[r]] = score;
+                    }
+                }
+            }
+            sxInside[length] = closeUnder(base, true);
+        }
+        int stride = maxContext + 1;
+        double[] outside = new double[stride * stride * numSymbols];
+        Arrays.fill(outside, Double.NEGATIVE_INFINITY);
+        for (int total = 0; total <= maxContext; total++) {
+            for (int left = 0; left <= total; left++) {
+                int right = total - left;
+                Arrays.fill(base, Double.NEGATIVE_INFINITY);
+                if (total == 0)
+                    base[rootSymbol] = 0.0;
+                for (int parent = 0; parent < numSymbols; parent++) {
+                    // the sibling takes length words of the right context
+                    for (int length = 1; length <= right; length++) {
+                        double parentOutside =
+                            outside[(left * stride + right - length) * numSymbols + parent];
+                        if (parentOutside == Double.NEGATIVE_INFINITY)
+                            continue;
+                        double[] siblingInside = sxInside[length];
+                        for (int r = byParent.start(parent); r < byParent.end(parent); r++) {
+                            double score = parentOutside + byParent.logScore[r]
+                                + siblingInside[byParent.right[r]];
+                            if (score > base[byParent.left[r]])
+                                base[byParent.left[r]] = score;
+                        }
+                    }
+                    // or of the left context
+                    for (int length = 1; length <= left; length++) {
+                        double parentOutside =
+                            outside[((left - length) * stride + right) * numSymbols + parent];
+                        if (parentOutside == Double.NEGATIVE_INFINITY)
+                            continue;
+                        double[] siblingInside = sxInside[length];
+                        for (int r = byParent.start(parent); r < byParent.end(parent); r++) {
+                            double score = parentOutside + byParent.logScore[r]
+                                + siblingInside[byParent.left[r]];
+                            if (score > base[byParent.right[r]])
+                                base[byParent.right[r]] = score;
+                        }
+                    }
+                }
+                System.arraycopy(closeUnder(base, false), 0, outside,
+                                 (left * stride + right) * numSymbols, numSymbols);
+            }
+        }
+        return outside;
+    }
+
+    /* Extends scores through the best unary chains: upwards (a chain's
+     * parent gets its child's score) for inside scores, or downwards for
+     * outside scores. */
+    private double[] closeUnder(double[] scores, boolean upwards) {
+        CompiledGrammar.UnaryClosure closure = compiledGrammar.unaryClosureByChild;
+        double[] closed = new double[scores.length];
+        Arrays.fill(closed, Double.NEGATIVE_INFINITY);
+        for (int child = 0; child < scores.length; child++) {
+            for (int r = closure.start(child); r < closure.end(child); r++) {
+                int parent = closure.parent[r];
+                if (upwards)
+                    closed[parent] = Math.max(closed[parent], scores[child] + closure.logScore[r]);
+                else
+                    closed[child] = Math.max(closed[child], scores[parent] + closure.logScore[r]);
+            }
+        }
+        return closed;
+    }
+
+    public Tree<String> getBestParse(List<String> sentence) {
+        if (!search(sentence))
+            return buildFlatParse(sentence);
+        Tree<String> annotatedTree = buildTree(sentence, 0, numWords, rootSymbol);
+        return TreeAnnotations.unAnnotateTree(annotatedTree);
+    }
+
+    /* Log probability of the best annotated derivation of the sentence,
+     * or negative infinity if there is none. */
+    double getBestScore(List<String> sentence) {
+        if (!search(sentence))
+            return Double.NEGATIVE_INFINITY;
+        return inside[index(0, numWords, rootSymbol)];
+    }
+
+    /* Pops edges until ROOT over the whole sentence is final, and
+     * returns whether it ever was. */
+    private boolean search(List<String> sentence) {
+        if (sentence.isEmpty() || rootSymbol < 0)
+            return false;
+        initialize(sentence);
+        int goal = index(0, numWords, rootSymbol);
+        while (!agenda.isEmpty()) {
+            int edge = agenda.pop();
+            finished[edge] = true;
+            edgesPopped++;
+            if (edge == goal)
+                return true;
+            expand(edge);
+        }
+        return false;
+    }
+
+    private void initialize(List<String> sentence) {
+        numWords = sentence.size();
+        numSymbols = compiledGrammar.numSymbols();
+        int numCells = numWords * (numWords + 1) / 2;
+        int size = numCells * numSymbols;
+        if (size > inside.length) {
+            inside = new double[size];
+            finished = new boolean[size];
+            backSplit = new int[size];
+            backLeft = new int[size];
+            backRight = new int[size];
+        }
+        Arrays.fill(inside, 0, size, Double.NEGATIVE_INFINITY);
+        Arrays.fill(finished, 0, size, false);
+        agenda.clear();
+        agenda.ensureCapacity(size);
+        int numKeys = (numWords + 1) * numSymbols;
+        if (numKeys * numWords > endsFrom.length) {
+            endsFrom = new int[numKeys * numWords];
+            startsTo = new int[numKeys * numWords];
+        }
+        if (numKeys > numEndsFrom.length) {
+            numEndsFrom = new int[numKeys];
+            numStartsTo = new int[numKeys];
+        }
+        Arrays.fill(numEndsFrom, 0, numKeys, 0);
+        Arrays.fill(numStartsTo, 0, numKeys, 0);
+
+        double[] tagScores = new double[numWords * tags.length];
+        double[] bestWordScores = new double[numWords];
+        for (int start = 0; start < numWords; start++) {
+            double[] logScores = lexicon.getLogScores(sentence.get(start));
+            double best = Double.NEGATIVE_INFINITY;
+            for (int t = 0; t < tags.length; t++) {
+                double score = logScores[tagIds[t]];
+                tagScores[start * tags.length + t] = score;
+                best = Math.max(best, score);
+            }
+            bestWordScores[start] = best;
+        }
+        // outsideWords[cell] is the best score of the words outside the
+        // cell's span, from prefix sums of the best word scores
+        double[] prefix = new double[numWords + 1];
+        for (int i = 0; i < numWords; i++) {
+            prefix[i + 1] = prefix[i] + bestWordScores[i];
+        }
+        outsideWords = new double[numCells];
+        cellStarts = new int[numCells];
+        cellEnds = new int[numCells];
+        cellContexts = new int[numCells];
+        int maxContext = Math.min(numWords - 1, MAX_SX_CONTEXT);
+        if (maxContext > sxContext)
+            computeSXEstimates(maxContext);
+        for (int start = 0, cell = 0; start < numWords; start++) {
+            for (int end = start + 1; end <= numWords; end++, cell++) {
+                outsideWords[cell] = prefix[start] + prefix[numWords] - prefix[end];
+                cellStarts[cell] = start;
+                cellEnds[cell] = end;
+                int right = numWords - end;
+                cellContexts[cell] = (start + right <= sxContext
+                                      ? (start * (sxContext + 1) + right) * numSymbols : -1);
+            }
+        }
+        for (int start = 0; start < numWords; start++) {
+            for (int t = 0; t < tags.length; t++) {
+                relax(start, start + 1, tagSymbols[t], tagScores[start * tags.length + t],
+                      LEXICAL, -1, -1);
+            }
+        }
+    }
+
+    /* Cells are numbered over the upper triangle, row by row, as in
+     * PCFGParser.Chart. */
+    private int cell(int start, int end) {
+        return start * (2 * numWords - start + 1) / 2 + end - start - 1;
+    }
+
+    private int index(int start, int end, int symbol) {
+        return cell(start, end) * numSymbols + symbol;
+    }
+
+    /* The outside estimate of an edge: the smaller of its two SX
+     * estimates, or, past MAX_SX_CONTEXT, the best rule path from ROOT
+     * with the actual words' best tag scores. */
+    private double estimate(int cell, int symbol) {
+        int context = cellContexts[cell];
+        if (context < 0)
+            return contextScore[symbol] + outsideWords[cell];
+        return Math.min(sxOutside[context + symbol],
+                        sxRuleOutside[context + symbol] + outsideWords[cell]);
+    }
+
+    /* Records a better inside score for an edge and queues it with its
+     * A* priority, or promotes it if it is already on the agenda.  The
+     * estimate only depends on the edge, so a better score is always a
+     * higher priority. */
+    private void relax(int start, int end, int symbol, double score,
+                       int split, int left, int right) {
+        int cell = cell(start, end);
+        int edge = cell * numSymbols + symbol;
+        if (finished[edge] || score <= inside[edge])
+            return;
+        double estimate = estimate(cell, symbol);
+        if (estimate == Double.NEGATIVE_INFINITY)
+            return;
+        if (inside[edge] == Double.NEGATIVE_INFINITY)
+            edgesBuilt++;
+        inside[edge] = score;
+        backSplit[edge] = split;
+        backLeft[edge] = left;
+        backRight[edge] = right;
+        agenda.promote(edge, score + estimate);
+    }
+
+    /* Files a newly finished edge under its start and end, then combines
+     * it with its unary parents and with the finished neighbours it can
+     * form a binary rule with, which the same lists give directly. */
+    private void expand(int edge) {
+        int symbol = edge % numSymbols;
+        int cell = edge / numSymbols;
+        int start = cellStarts[cell];
+        int end = cellEnds[cell];
+        double score = inside[edge];
+        int fromKey = start * numSymbols + symbol;
+        endsFrom[fromKey * numWords + numEndsFrom[fromKey]++] = end;
+        int toKey = end * numSymbols + symbol;
+        startsTo[toKey * numWords + numStartsTo[toKey]++] = start;
+
+        CompiledGrammar.UnaryRuleTable unaryRules = compiledGrammar.unaryByChild;
+        for (int r = unaryRules.start(symbol); r < unaryRules.end(symbol); r++) {
+            relax(start, end, unaryRules.parent[r], score + unaryRules.logScore[r],
+                  UNARY, symbol, -1);
+        }
+        CompiledGrammar.BinaryRuleTable byLeft = compiledGrammar.binaryByLeft;
+        for (int r = byLeft.start(symbol); r < byLeft.end(symbol); r++) {
+            int right = byLeft.right[r];
+            int key = end * numSymbols + right;
+            for (int i = key * numWords, last = i + numEndsFrom[key]; i < last; i++) {
+                int rightEnd = endsFrom[i];
+                relax(start, rightEnd, byLeft.parent[r],
+                      score + inside[index(end, rightEnd, right)] + byLeft.logScore[r],
+                      end, symbol, right);
+            }
+        }
+        CompiledGrammar.BinaryRuleTable byRight = compiledGrammar.binaryByRight;
+        for (int r = byRight.start(symbol); r < byRight.end(symbol); r++) {
+            int left = byRight.left[r];
+            int key = start * numSymbols + left;
+            for (int i = key * numWords, last = i + numStartsTo[key]; i < last; i++) {
+                int leftStart = startsTo[i];
+                relax(leftStart, end, byRight.parent[r],
+                      inside[index(leftStart, start, left)] + score + byRight.logScore[r],
+                      start, left, symbol);
+            }
+        }
+    }
+
+    private Tree<String> buildTree(List<String> sentence, int start, int end, int symbol) {
+        int edge = index(start, end, symbol);
+        String label = compiledGrammar.getSymbols().get(symbol);
+        int split = backSplit[edge];
+        if (split == LEXICAL) {
+            Tree<String> leaf = new Tree<String>(sentence.get(start));
+            return new Tree<String>(label, Collections.singletonList(leaf));
+        }
+        if (split == UNARY) {
+            Tree<String> child = buildTree(sentence, start, end, backLeft[edge]);
+            return new Tree<String>(label, Collections.singletonList(child));
+        }
+        List<Tree<String>> children = new ArrayList<Tree<String>>(2);
+        children.add(buildTree(sentence, start, split, backLeft[edge]));
+        children.add(buildTree(sentence, split, end, backRight[edge]));
+        return new Tree<String>(label, children);
+    }
+
+    /* Fallback for sentences the grammar cannot cover: a flat ROOT
+     * over the best individual tag for each word. */
+    private Tree<String> buildFlatParse(List<String> sentence) {
+        List<Tree<String>> children = new ArrayList<Tree<String>>();
+        for (String word : sentence) {
+            String bestTag = lexicon.getBestTag(word);
+            children.add(new Tree<String>(bestTag,
+                    Collections.singletonList(new Tree<String>(word))));
+        }
+        return new Tree<String>(ROOT, children);
+    }
+}
@@ -21,8 +21,8 @@ public class BaselineParser implements Parser {
 
     public void train(List<Tree<String>> trainTrees) {
         lexicon = new Lexicon(trainTrees);
-        knownParses = new CounterMap<List<String>, Tree<String>>();
-        spanToCategories = new CounterMap<Integer, String>();
+        knownParses = new CounterMap<List<String>, Tree<String>>(true);
+        spanToCategories = new CounterMap<Integer, String>(true);
         for (Tree<String> trainTree : trainTrees) {
             List<String> tags = trainTree.getPreTerminalYield();
             knownParses.incrementCount(tags, trainTree, 1.0);
@@ -49,14 +49,16 @@ public class BaselineParser implements Parser {
         while (currentPosition > 0) {
             currentPosition--;
             rightBranchTree = merge(buildTagTree(words, tags, currentPosition),
-                    rightBranchTree);
+                    rightBranchTree, words.size() - currentPosition);
         }
         rightBranchTree = addRoot(rightBranchTree);
         return rightBranchTree;
     }
 
-    private Tree<String> merge(Tree<String> leftTree, Tree<String> rightTree) {
-        int span = leftTree.getYield().size() + rightTree.getYield().size();
+    /* The span counters keep their maxima as they are tallied, so
+     * looking up the label is constant time; the caller passes the span,
+     * which it knows, rather than have us walk both yields. */
+    private Tree<String> merge(Tree<String> leftTree, Tree<String> rightTree, int span) {
         String mostFrequentLabel = spanToCategories.getCounter(span).argMax();
         List<Tree<String>> children = new ArrayList<Tree<String>>();
         children.add(leftTree);
@@ -86,25 +88,12 @@ public class BaselineParser implements Parser {
     private List<String> getBaselineTagging(List<String> sentence) {
         List<String> tags = new ArrayList<String>();
         for (String word : sentence) {
-            String tag = getBestTag(word);
+            String tag = lexicon.getBestTag(word);
             tags.add(tag);
         }
         return tags;
     }
 
-    private String getBestTag(String word) {
-        double bestScore = Double.NEGATIVE_INFINITY;
-        String bestTag = null;
-        for (String tag : lexicon.getAllTags()) {
-            double score = lexicon.scoreTagging(word, tag);
-            if (bestTag == null || score > bestScore) {
-                bestScore = score;
-                bestTag = tag;
-            }
-        }
-        return bestTag;
-    }
-
     private int tallySpans(Tree<String> tree, int start) {
         if (tree.isLeaf() || tree.isPreTerminal()) 
             return 1;
@@ -0,0 +1,14 @@
+package cs224n.assignment;
+
+import java.util.List;
+import cs224n.ling.Tree;
+
+/**
+ * Parsers which can parse many sentences concurrently.  Once trained,
+ * a BatchParser must be safe to call from several threads at once.
+ */
+public interface BatchParser extends Parser {
+    /* Parses every sentence using up to numThreads worker threads, and
+     * returns the parses in the same order as the input. */
+    public List<Tree<String>> parseAll(List<List<String>> sentences, int numThreads);
+}
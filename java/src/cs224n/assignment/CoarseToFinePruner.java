@@ -0,0 +1,449 @@
+package cs224n.assignment;
+
+import cs224n.ling.Tree;
+import cs224n.util.Index;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * First pass of coarse-to-fine parsing.  The annotated training trees
+ * are projected onto coarse symbols (see TreeAnnotations.projectLabel)
+ * and a coarse grammar and lexicon are estimated from them.  For each
+ * sentence, an inside-outside pass over the coarse grammar gives the
+ * posterior probability of every coarse symbol over every span, and the
+ * fine parser only builds symbols whose projection clears a threshold.
+ *
+ * Scores are kept as probabilities scaled per cell rather than in log
+ * space, so summing them takes no logs or exponentials.  Unary chains
+ * are summed through the max-chain closure of the coarse grammar, and
+ * the outside pass only pushes score down from entries that are kept,
+ * so the posteriors are approximate: alternative chains between the
+ * same pair of symbols, and parents that fall below the threshold, are
+ * left out.
+ *
+ * TreeAnnotations only binarizes, so the fine grammar is barely larger
+ * than its projection, and the coarse pass costs about as much as the
+ * fine one it prunes.  The pruner only pays off with a richer annotated
+ * grammar; until then PCFGParserTester does not offer it.
+ */
+class CoarseToFinePruner {
+
+    // Masks ==================================================================
+
+    /* Which coarse symbols survive over each span, for the binary (base)
+     * and unary layers of the chart, together with the inside and outside
+     * scores they are computed from.  Laid out like the fine chart (see
+     * PCFGParser.Chart), with the coarse symbol count as the stride.
+     * Scores are probabilities, scaled per cell: entry e of cell c stands
+     * for insideBase[e] * exp(insideScale[c / numSymbols]), and likewise
+     * for the outside scores.  Each thread reuses one Masks across
+     * sentences. */
+    static class Masks {
+        final int numSymbols;
+        int numWords;
+        boolean[] base = new boolean[0];
+        boolean[] unary = new boolean[0];
+        double[] insideBase = new double[0];
+        double[] insideUnary = new double[0];
+        double[] outsideBase = new double[0];
+        double[] outsideUnary = new double[0];
+        double[] insideScale = new double[0];
+        double[] outsideScale = new double[0];
+
+        int cell(int start, int end) {
+            return (start * (2 * numWords - start + 1) / 2 + end - start - 1) * numSymbols;
+        }
+
+        /* Resets the scores for a sentence of the given length, growing
+         * the arrays if they are too small.  The masks themselves are
+         * overwritten by prune(). */
+        void clear(int numWords) {
+            this.numWords = numWords;
+            int size = (int) PCFGParser.Chart.size(numWords, numSymbols);
+            if (size > insideBase.length) {
+                base = new boolean[size];
+                unary = new boolean[size];
+                insideBase = new double[size];
+                insideUnary = new double[size];
+                outsideBase = new double[size];
+                outsideUnary = new double[size];
+            }
+            int numCells = size / numSymbols;
+            if (numCells > insideScale.length) {
+                insideScale = new double[numCells];
+                outsideScale = new double[numCells];
+            }
+            Arrays.fill(base, 0, size, false);
+            Arrays.fill(unary, 0, size, false);
+            Arrays.fill(insideBase, 0, size, 0.0);
+            Arrays.fill(insideUnary, 0, size, 0.0);
+            Arrays.fill(outsideBase, 0, size, 0.0);
+            Arrays.fill(outsideUnary, 0, size, 0.0);
+            Arrays.fill(insideScale, 0, numCells, Double.NEGATIVE_INFINITY);
+            Arrays.fill(outsideScale, 0, numCells, Double.NEGATIVE_INFINITY);
+        }
+
+        /* Prepares a cell's unary-layer outside scores for a contribution
+         * on the given log scale, and returns the factor that brings the
+         * contribution to the cell's scale.  A larger scale becomes the
+         * cell's own, and the scores already there are brought down to
+         * it. */
+        double rescaleOutside(int cell, double scale) {
+            double current = outsideScale[cell / numSymbols];
+            if (scale <= current)
+                return Math.exp(scale - current);
+            if (current != Double.NEGATIVE_INFINITY) {
+                double factor = Math.exp(current - scale);
+                for (int entry = cell; entry < cell + numSymbols; entry++) {
+                    outsideUnary[entry] *= factor;
+                }
+            }
+            outsideScale[cell / numSymbols] = scale;
+            return 1.0;
+        }
+
+        /* Scales a cell's unary-layer outside scores so the largest is
+         * one; returns false if they are all zero. */
+        boolean normalizeOutside(int cell) {
+            double max = 0.0;
+            for (int entry = cell; entry < cell + numSymbols; entry++) {
+                max = Math.max(max, outsideUnary[entry]);
+            }
+            if (max == 0.0)
+                return false;
+            for (int entry = cell; entry < cell + numSymbols; entry++) {
+                outsideUnary[entry] /= max;
+            }
+            outsideScale[cell / numSymbols] += Math.log(max);
+            return true;
+        }
+
+        Masks(int numSymbols) {
+            this.numSymbols = numSymbols;
+        }
+    }
+
+    // Tally ==================================================================
+
+    /* Coarse rule and tagging counts, added one annotated tree at a time;
+     * each tree is projected as it is counted and then dropped. */
+    static class Tally {
+        final Grammar.Tally rules = new Grammar.Tally();
+        final Lexicon.Tally taggings = new Lexicon.Tally();
+
+        void addTree(Tree<String> annotatedTree) {
+            Tree<String> projectedTree = TreeAnnotations.projectTree(annotatedTree);
+            rules.addTree(projectedTree);
+            taggings.addTree(projectedTree);
+        }
+    }
+
+    private final CompiledGrammar grammar;
+    private final Lexicon lexicon;
+    private final String[] tags;
+    private final int[] tagSymbols;
+    private final int[] tagIds;
+    private final int rootSymbol;
+    private final int[] coarseOf;
+    // rule and chain probabilities, in the order of binaryByLeft,
+    // binaryByParent and unaryClosureByChild
+    private final double[] binaryProbs;
+    private final double[] binaryProbsByParent;
+    private final double[] chainProbs;
+
+    private final ThreadLocal<Masks> threadMasks = new ThreadLocal<Masks>();
+
+    /* Coarse symbol for each fine symbol.  Both grammars are estimated
+     * from the same trees, so every fine symbol should have a
+     * projection; a symbol without one (-1) is never pruned. */
+    int[] getProjection() {
+        return coarseOf;
+    }
+
+    /* Returns the coarse masks for a sentence, keeping symbols whose
+     * posterior is at least the given probability, or null if the coarse
+     * grammar cannot parse the sentence at all.  The masks belong to the
+     * calling thread and are overwritten by its next call, unless the
+     * sentence is too long for them to be kept (see
+     * PCFGParser.MAX_RETAINED_CHART_SIZE). */
+    Masks prune(List<String> sentence, double threshold) {
+        int numWords = sentence.size();
+        if (numWords == 0)
+            return null;
+        int numSymbols = grammar.numSymbols();
+        long size = PCFGParser.Chart.size(numWords, numSymbols);
+        Masks masks = threadMasks.get();
+        if (size > PCFGParser.MAX_RETAINED_CHART_SIZE) {
+            masks = new Masks(numSymbols);
+        } else if (masks == null) {
+            masks = new Masks(numSymbols);
+            threadMasks.set(masks);
+        }
+        masks.clear(numWords);
+        inside(sentence, masks);
+        int top = masks.cell(0, numWords);
+        double rootInside = masks.insideUnary[top + rootSymbol];
+        if (rootInside == 0.0)
+            return null;
+        double logZ = Math.log(rootInside) + masks.insideScale[top / numSymbols];
+        masks.outsideUnary[top + rootSymbol] = 1.0;
+        masks.outsideScale[top / numSymbols] = 0.0;
+        outside(masks, Math.log(threshold) + logZ);
+        return masks;
+    }
+
+    /* Sums the inside scores bottom up.  Each cell's scores are scaled so
+     * its largest base score is one, and the log of the scale is kept in
+     * insideScale; a cell without entries has scale negative infinity. */
+    private void inside(List<String> sentence, Masks masks) {
+        double[] insideBase = masks.insideBase;
+        double[] insideUnary = masks.insideUnary;
+        double[] insideScale = masks.insideScale;
+        int numWords = sentence.size();
+        int numSymbols = grammar.numSymbols();
+        CompiledGrammar.BinaryRuleTable rules = grammar.binaryByLeft;
+        for (int start = 0; start < numWords; start++) {
+            int cell = masks.cell(start, start + 1);
+            double[] logScores = lexicon.getLogScores(sentence.get(start));
+            double scale = Double.NEGATIVE_INFINITY;
+            for (int t = 0; t < tags.length; t++) {
+                scale = Math.max(scale, logScores[tagIds[t]]);
+            }
+            if (scale == Double.NEGATIVE_INFINITY)
+                continue;
+            for (int t = 0; t < tags.length; t++) {
+                insideBase[cell + tagSymbols[t]] = Math.exp(logScores[tagIds[t]] - scale);
+            }
+            insideScale[cell / numSymbols] = scale;
+            insideUnaries(cell, insideBase, insideUnary);
+        }
+        for (int span = 2; span <= numWords; span++) {
+            for (int start = 0; start + span <= numWords; start++) {
+                int end = start + span;
+                int cell = masks.cell(start, end);
+                double scale = Double.NEGATIVE_INFINITY;
+                for (int split = start + 1; split < end; split++) {
+                    scale = Math.max(scale, insideScale[masks.cell(start, split) / numSymbols]
+                                     + insideScale[masks.cell(split, end) / numSymbols]);
+                }
+                if (scale == Double.NEGATIVE_INFINITY)
+                    continue;
+                for (int split = start + 1; split < end; split++) {
+                    int leftCell = masks.cell(start, split);
+                    int rightCell = masks.cell(split, end);
+                    double splitScale = insideScale[leftCell / numSymbols]
+                        + insideScale[rightCell / numSymbols];
+                    if (splitScale == Double.NEGATIVE_INFINITY)
+                        continue;
+                    double factor = Math.exp(splitScale - scale);
+                    for (int left = 0; left < numSymbols; left++) {
+                        double leftScore = insideUnary[leftCell + left];
+                        if (leftScore == 0.0)
+                            continue;
+                        leftScore *= factor;
+                        for (int r = rules.start(left), last = rules.end(left); r < last; r++) {
+                            double rightScore = insideUnary[rightCell + rules.right[r]];
+                            if (rightScore != 0.0)
+                                insideBase[cell + rules.parent[r]] +=
+                                    leftScore * rightScore * binaryProbs[r];
+                        }
+                    }
+                }
+                double max = 0.0;
+                for (int entry = cell; entry < cell + numSymbols; entry++) {
+                    max = Math.max(max, insideBase[entry]);
+                }
+                if (max == 0.0)
+                    continue;
+                for (int entry = cell; entry < cell + numSymbols; entry++) {
+                    insideBase[entry] /= max;
+                }
+                insideScale[cell / numSymbols] = scale + Math.log(max);
+                insideUnaries(cell, insideBase, insideUnary);
+            }
+        }
+    }
+
+    private void insideUnaries(int cell, double[] insideBase, double[] insideUnary) {
+        CompiledGrammar.UnaryClosure closure = grammar.unaryClosureByChild;
+        for (int child = 0; child < grammar.numSymbols(); child++) {
+            double childScore = insideBase[cell + child];
+            if (childScore == 0.0)
+                continue;
+            for (int r = closure.start(child), last = closure.end(child); r < last; r++) {
+                insideUnary[cell + closure.parent[r]] += childScore * chainProbs[r];
+            }
+        }
+    }
+
+    /* Visits spans from longest to shortest.  A cell's unary-layer
+     * outside scores are complete when it is reached, so its masks are
+     * set then, and only the entries they keep push outside score down
+     * to the base layer and on to smaller cells: the coarse chart is
+     * pruned as it goes, and cells with nothing kept are skipped.  The
+     * outside scores of a cell share a scale like the inside ones; a
+     * contribution on a larger scale rescales the cell first. */
+    private void outside(Masks masks, double logThreshold) {
+        double[] insideBase = masks.insideBase;
+        double[] insideUnary = masks.insideUnary;
+        double[] outsideBase = masks.outsideBase;
+        double[] outsideUnary = masks.outsideUnary;
+        double[] insideScale = masks.insideScale;
+        double[] outsideScale = masks.outsideScale;
+        boolean[] base = masks.base;
+        boolean[] unary = masks.unary;
+        int numWords = masks.numWords;
+        int numSymbols = grammar.numSymbols();
+        CompiledGrammar.BinaryRuleTable rules = grammar.binaryByParent;
+        CompiledGrammar.UnaryClosure closure = grammar.unaryClosureByChild;
+        for (int span = numWords; span >= 1; span--) {
+            for (int start = 0; start + span <= numWords; start++) {
+                int end = start + span;
+                int cell = masks.cell(start, end);
+                int cellNumber = cell / numSymbols;
+                if (insideScale[cellNumber] == Double.NEGATIVE_INFINITY
+                    || outsideScale[cellNumber] == Double.NEGATIVE_INFINITY
+                    || !masks.normalizeOutside(cell))
+                    continue;
+                double scale = insideScale[cellNumber] + outsideScale[cellNumber];
+                // an entry is kept when inside * outside reaches this
+                double cutoff = Math.exp(logThreshold - scale);
+                boolean anyKept = false;
+                for (int entry = cell; entry < cell + numSymbols; entry++) {
+                    unary[entry] = insideUnary[entry] * outsideUnary[entry] >= cutoff;
+                    anyKept |= unary[entry];
+                }
+                if (!anyKept)
+                    continue;
+                anyKept = false;
+                for (int child = 0; child < numSymbols; child++) {
+                    double childInside = insideBase[cell + child];
+                    if (childInside == 0.0)
+                        continue;
+                    double childOutside = 0.0;
+                    for (int r = closure.start(child), last = closure.end(child); r < last; r++) {
+                        int parent = closure.parent[r];
+                        if (unary[cell + parent])
+                            childOutside += outsideUnary[cell + parent] * chainProbs[r];
+                    }
+                    outsideBase[cell + child] = childOutside;
+                    base[cell + child] = childInside * childOutside >= cutoff;
+                    anyKept |= base[cell + child];
+                }
+                if (!anyKept || span == 1)
+                    continue;
+                double parentScale = outsideScale[cellNumber];
+                for (int split = start + 1; split < end; split++) {
+                    int leftCell = masks.cell(start, split);
+                    int rightCell = masks.cell(split, end);
+                    double leftInsideScale = insideScale[leftCell / numSymbols];
+                    double rightInsideScale = insideScale[rightCell / numSymbols];
+                    if (leftInsideScale == Double.NEGATIVE_INFINITY
+                        || rightInsideScale == Double.NEGATIVE_INFINITY)
+                        continue;
+                    double leftFactor = masks.rescaleOutside(leftCell, parentScale + rightInsideScale);
+                    double rightFactor = masks.rescaleOutside(rightCell, parentScale + leftInsideScale);
+                    for (int parent = 0; parent < numSymbols; parent++) {
+                        if (!base[cell + parent])
+                            continue;
+                        double parentOutside = outsideBase[cell + parent];
+                        for (int r = rules.start(parent), last = rules.end(parent); r < last; r++) {
+                            int left = leftCell + rules.left[r];
+                            int right = rightCell + rules.right[r];
+                            double leftInside = insideUnary[left];
+                            double rightInside = insideUnary[right];
+                            if (leftInside == 0.0 || rightInside == 0.0)
+                                continue;
+                            double score = parentOutside * binaryProbsByParent[r];
+                            outsideUnary[left] += score * rightInside * leftFactor;
+                            outsideUnary[right] += score * leftInside * rightFactor;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /* Builds the coarse grammar and lexicon from annotated training trees,
+     * and maps the fine parser's symbols onto it. */
+    CoarseToFinePruner(List<Tree<String>> annotatedTrees, Index<String> fineSymbols) {
+        this(tally(annotatedTrees), fineSymbols);
+    }
+
+    private static Tally tally(List<Tree<String>> annotatedTrees) {
+        Tally tally = new Tally();
+        for (Tree<String> annotatedTree : annotatedTrees) {
+            tally.addTree(annotatedTree);
+        }
+        return tally;
+    }
+
+    /* Builds the coarse grammar and lexicon from a tally of projected
+     * trees, and maps the fine parser's symbols onto it. */
+    CoarseToFinePruner(Tally tally, Index<String> fineSymbols) {
+        lexicon = new Lexicon(tally.taggings);
+        grammar = new Grammar(tally.rules).compile();
+        Index<String> symbols = grammar.getSymbols();
+        rootSymbol = symbols.indexOf("ROOT");
+        List<String> knownTags = new ArrayList<String>();
+        for (String tag : lexicon.getAllTags()) {
+            if (symbols.contains(tag))
+                knownTags.add(tag);
+        }
+        Collections.sort(knownTags);
+        tags = knownTags.toArray(new String[knownTags.size()]);
+        tagSymbols = new int[tags.length];
+        tagIds = new int[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            tagSymbols[i] = symbols.indexOf(tags[i]);
+            tagIds[i] = lexicon.getTagIndex().indexOf(tags[i]);
+        }
+        coarseOf = new int[fineSymbols.size()];
+        for (int fine = 0; fine < fineSymbols.size(); fine++) {
+            coarseOf[fine] = symbols.indexOf(TreeAnnotations.projectLabel(fineSymbols.get(fine)));
+        }
+        binaryProbs = exp(grammar.binaryByLeft.logScore);
+        binaryProbsByParent = exp(grammar.binaryByParent.logScore);
+        chainProbs = exp(grammar.unaryClosureByChild.logScore);
+    }
+
+    private static double[] exp(double[] logScores) {
+        double[] probs = new double[logScores.length];
+        for (int i = 0; i < logScores.length; i++) {
+            probs[i] = Math.exp(logScores[i]);
+        }
+        return probs;
+    }
+
+    private CoarseToFinePruner(CompiledGrammar grammar, Lexicon lexicon, String[] tags,
+                               int[] tagSymbols, int[] tagIds, int rootSymbol, int[] coarseOf) {
+        this.grammar = grammar;
+        this.lexicon = lexicon;
+        this.tags = tags;
+        this.tagSymbols = tagSymbols;
+        this.tagIds = tagIds;
+        this.rootSymbol = rootSymbol;
+        this.coarseOf = coarseOf;
+        binaryProbs = exp(grammar.binaryByLeft.logScore);
+        binaryProbsByParent = exp(grammar.binaryByParent.logScore);
+        chainProbs = exp(grammar.unaryClosureByChild.logScore);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        grammar.write(out);
+        lexicon.write(out);
+        ModelFile.writeStrings(out, Arrays.asList(tags), tags.length);
+        ModelFile.writeInts(out, tagSymbols);
+        ModelFile.writeInts(out, tagIds);
+        out.writeInt(rootSymbol);
+        ModelFile.writeInts(out, coarseOf);
+    }
+
+    static CoarseToFinePruner read(ByteBuffer in) {
+        return new CoarseToFinePruner(CompiledGrammar.read(in), Lexicon.read(in),
+                                      ModelFile.readStrings(in), ModelFile.readInts(in),
+                                      ModelFile.readInts(in), in.getInt(), ModelFile.readInts(in));
+    }
+}
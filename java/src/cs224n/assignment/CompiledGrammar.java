@@ -0,0 +1,457 @@
+package cs224n.assignment;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import cs224n.util.Index;
+import cs224n.util.PriorityQueue;
+
+// CompiledGrammar ============================================================
+
+/**
+ * Immutable, integer-indexed form of a Grammar, produced by
+ * Grammar.compile().  Symbols are numbered through an Index and rules
+ * are stored in compressed-sparse-row tables: parallel primitive arrays
+ * sorted by one key symbol, plus an offsets array so that the rules
+ * keyed by symbol s occupy positions offsets[s] to offsets[s+1]-1.
+ * Scores are natural logs of the rule probabilities.
+ */
+public class CompiledGrammar {
+
+	// BinaryRuleTable ============================================================
+
+	/* Binary rules sorted by one of their symbols. */
+	public static class BinaryRuleTable {
+		final int[] offsets;
+		final int[] parent;
+		final int[] left;
+		final int[] right;
+		final double[] logScore;
+
+		public int start(int key) {
+			return offsets[key];
+		}
+
+		public int end(int key) {
+			return offsets[key + 1];
+		}
+
+		BinaryRuleTable(int[] offsets, int[] parent, int[] left, int[] right, double[] logScore) {
+			this.offsets = offsets;
+			this.parent = parent;
+			this.left = left;
+			this.right = right;
+			this.logScore = logScore;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			ModelFile.writeInts(out, offsets);
+			ModelFile.writeInts(out, parent);
+			ModelFile.writeInts(out, left);
+			ModelFile.writeInts(out, right);
+			ModelFile.writeDoubles(out, logScore);
+		}
+
+		static BinaryRuleTable read(ByteBuffer in) {
+			return new BinaryRuleTable(ModelFile.readInts(in), ModelFile.readInts(in),
+					ModelFile.readInts(in), ModelFile.readInts(in), ModelFile.readDoubles(in));
+		}
+	}
+
+	// UnaryRuleTable =============================================================
+
+	/* Unary rules sorted by one of their symbols. */
+	public static class UnaryRuleTable {
+		final int[] offsets;
+		final int[] parent;
+		final int[] child;
+		final double[] logScore;
+
+		public int start(int key) {
+			return offsets[key];
+		}
+
+		public int end(int key) {
+			return offsets[key + 1];
+		}
+
+		UnaryRuleTable(int[] offsets, int[] parent, int[] child, double[] logScore) {
+			this.offsets = offsets;
+			this.parent = parent;
+			this.child = child;
+			this.logScore = logScore;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			ModelFile.writeInts(out, offsets);
+			ModelFile.writeInts(out, parent);
+			ModelFile.writeInts(out, child);
+			ModelFile.writeDoubles(out, logScore);
+		}
+
+		static UnaryRuleTable read(ByteBuffer in) {
+			return new UnaryRuleTable(ModelFile.readInts(in), ModelFile.readInts(in),
+					ModelFile.readInts(in), ModelFile.readDoubles(in));
+		}
+	}
+
+	// UnaryClosure ===============================================================
+
+	/* Best unary chains, sorted by their bottom symbol.  Entry r means
+	 * parent[r] =>* child[r] with the given total log score, through the
+	 * intermediate symbols pathSymbols[pathOffsets[r]] to
+	 * pathSymbols[pathOffsets[r+1]-1], listed from the top down.  Every
+	 * symbol has a reflexive entry with score zero and an empty path.
+	 * The entries are also indexed by parent: byParent[parentStart(p)]
+	 * to byParent[parentEnd(p)-1] are the entries whose top is p, by
+	 * increasing child.  That index is rebuilt rather than saved. */
+	public static class UnaryClosure extends UnaryRuleTable {
+		final int[] pathOffsets;
+		final int[] pathSymbols;
+		final int[] parentOffsets;
+		final int[] byParent;
+
+		public int[] getPath(int entry) {
+			return Arrays.copyOfRange(pathSymbols, pathOffsets[entry], pathOffsets[entry + 1]);
+		}
+
+		public int parentStart(int parent) {
+			return parentOffsets[parent];
+		}
+
+		public int parentEnd(int parent) {
+			return parentOffsets[parent + 1];
+		}
+
+		UnaryClosure(int[] offsets, int[] parent, int[] child, double[] logScore,
+				int[] pathOffsets, int[] pathSymbols) {
+			super(offsets, parent, child, logScore);
+			this.pathOffsets = pathOffsets;
+			this.pathSymbols = pathSymbols;
+			// entries are sorted by child, so a counting sort by parent
+			// keeps them in child order within each parent
+			parentOffsets = new int[offsets.length];
+			for (int r = 0; r < parent.length; r++) {
+				parentOffsets[parent[r] + 1]++;
+			}
+			for (int p = 1; p < parentOffsets.length; p++) {
+				parentOffsets[p] += parentOffsets[p - 1];
+			}
+			byParent = new int[parent.length];
+			int[] next = Arrays.copyOf(parentOffsets, parentOffsets.length - 1);
+			for (int r = 0; r < parent.length; r++) {
+				byParent[next[parent[r]]++] = r;
+			}
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			super.write(out);
+			ModelFile.writeInts(out, pathOffsets);
+			ModelFile.writeInts(out, pathSymbols);
+		}
+
+		static UnaryClosure read(ByteBuffer in) {
+			return new UnaryClosure(ModelFile.readInts(in), ModelFile.readInts(in),
+					ModelFile.readInts(in), ModelFile.readDoubles(in), ModelFile.readInts(in),
+					ModelFile.readInts(in));
+		}
+	}
+
+	private static final int PARENT = 0;
+	private static final int LEFT = 1;
+	private static final int RIGHT = 2;
+
+	final Index<String> symbols;
+	final BinaryRuleTable binaryByLeft;
+	final BinaryRuleTable binaryByRight;
+	final BinaryRuleTable binaryByParent;
+	final UnaryRuleTable unaryByChild;
+	final UnaryRuleTable unaryByParent;
+	final UnaryClosure unaryClosureByChild;
+
+	public Index<String> getSymbols() {
+		return symbols;
+	}
+
+	public int numSymbols() {
+		return symbols.size();
+	}
+
+	public BinaryRuleTable getBinaryRulesByLeftChild() {
+		return binaryByLeft;
+	}
+
+	public BinaryRuleTable getBinaryRulesByRightChild() {
+		return binaryByRight;
+	}
+
+	public BinaryRuleTable getBinaryRulesByParent() {
+		return binaryByParent;
+	}
+
+	public UnaryRuleTable getUnaryRulesByChild() {
+		return unaryByChild;
+	}
+
+	public UnaryRuleTable getUnaryRulesByParent() {
+		return unaryByParent;
+	}
+
+	public UnaryClosure getUnaryClosureByChild() {
+		return unaryClosureByChild;
+	}
+
+	/* Numbers the grammar's symbols in sorted order and packs each rule
+	 * index into its table. */
+	CompiledGrammar(Grammar grammar) {
+		List<Grammar.BinaryRule> binaryRules = new ArrayList<Grammar.BinaryRule>();
+		for (List<Grammar.BinaryRule> rules : grammar.binaryRulesByLeftChild.values()) {
+			binaryRules.addAll(rules);
+		}
+		List<Grammar.UnaryRule> unaryRules = new ArrayList<Grammar.UnaryRule>();
+		for (List<Grammar.UnaryRule> rules : grammar.unaryRulesByChild.values()) {
+			unaryRules.addAll(rules);
+		}
+		List<String> symbolList = new ArrayList<String>();
+		Index<String> seen = new Index<String>();
+		for (Grammar.BinaryRule rule : binaryRules) {
+			seen.add(rule.getParent());
+			seen.add(rule.getLeftChild());
+			seen.add(rule.getRightChild());
+		}
+		for (Grammar.UnaryRule rule : unaryRules) {
+			seen.add(rule.getParent());
+			seen.add(rule.getChild());
+		}
+		symbolList.addAll(seen);
+		Collections.sort(symbolList);
+		symbols = new Index<String>(symbolList);
+
+		int numBinary = binaryRules.size();
+		int[][] binarySymbols = new int[3][numBinary];
+		double[] binaryScores = new double[numBinary];
+		for (int r = 0; r < numBinary; r++) {
+			Grammar.BinaryRule rule = binaryRules.get(r);
+			binarySymbols[PARENT][r] = symbols.indexOf(rule.getParent());
+			binarySymbols[LEFT][r] = symbols.indexOf(rule.getLeftChild());
+			binarySymbols[RIGHT][r] = symbols.indexOf(rule.getRightChild());
+			binaryScores[r] = Math.log(rule.getScore());
+		}
+		binaryByLeft = buildBinaryTable(binarySymbols, binaryScores, LEFT, RIGHT, PARENT);
+		binaryByRight = buildBinaryTable(binarySymbols, binaryScores, RIGHT, LEFT, PARENT);
+		binaryByParent = buildBinaryTable(binarySymbols, binaryScores, PARENT, LEFT, RIGHT);
+
+		int numUnary = unaryRules.size();
+		int[][] unarySymbols = new int[2][numUnary];
+		double[] unaryScores = new double[numUnary];
+		for (int r = 0; r < numUnary; r++) {
+			Grammar.UnaryRule rule = unaryRules.get(r);
+			unarySymbols[0][r] = symbols.indexOf(rule.getParent());
+			unarySymbols[1][r] = symbols.indexOf(rule.getChild());
+			unaryScores[r] = Math.log(rule.getScore());
+		}
+		unaryByChild = buildUnaryTable(unarySymbols, unaryScores, 1, 0);
+		unaryByParent = buildUnaryTable(unarySymbols, unaryScores, 0, 1);
+		unaryClosureByChild = buildUnaryClosure();
+	}
+
+	private CompiledGrammar(Index<String> symbols, BinaryRuleTable binaryByLeft,
+			BinaryRuleTable binaryByRight, BinaryRuleTable binaryByParent,
+			UnaryRuleTable unaryByChild, UnaryRuleTable unaryByParent,
+			UnaryClosure unaryClosureByChild) {
+		this.symbols = symbols;
+		this.binaryByLeft = binaryByLeft;
+		this.binaryByRight = binaryByRight;
+		this.binaryByParent = binaryByParent;
+		this.unaryByChild = unaryByChild;
+		this.unaryByParent = unaryByParent;
+		this.unaryClosureByChild = unaryClosureByChild;
+	}
+
+	/* Writes the symbol table and every rule table, closure included, so
+	 * that read() needs no recomputation. */
+	void write(DataOutputStream out) throws IOException {
+		ModelFile.writeIndex(out, symbols);
+		binaryByLeft.write(out);
+		binaryByRight.write(out);
+		binaryByParent.write(out);
+		unaryByChild.write(out);
+		unaryByParent.write(out);
+		unaryClosureByChild.write(out);
+	}
+
+	static CompiledGrammar read(ByteBuffer in) {
+		return new CompiledGrammar(ModelFile.readIndex(in), BinaryRuleTable.read(in),
+				BinaryRuleTable.read(in), BinaryRuleTable.read(in), UnaryRuleTable.read(in),
+				UnaryRuleTable.read(in), UnaryClosure.read(in));
+	}
+
+	/* For each child symbol, finds the best chain up to every symbol
+	 * reachable through unary rules.  Rule log scores are never positive,
+	 * so a best-first search from the child settles each ancestor with
+	 * its best chain the first time it is popped. */
+	private UnaryClosure buildUnaryClosure() {
+		int numSymbols = numSymbols();
+		int[] offsets = new int[numSymbols + 1];
+		IntList parents = new IntList();
+		IntList children = new IntList();
+		List<Double> scores = new ArrayList<Double>();
+		IntList pathOffsets = new IntList();
+		IntList pathSymbols = new IntList();
+		pathOffsets.add(0);
+
+		double[] best = new double[numSymbols];
+		int[] below = new int[numSymbols];
+		boolean[] settled = new boolean[numSymbols];
+		Arrays.fill(best, Double.NEGATIVE_INFINITY);
+		IntList touched = new IntList();
+		IntList chain = new IntList();
+		for (int child = 0; child < numSymbols; child++) {
+			PriorityQueue<Integer> agenda = new PriorityQueue<Integer>();
+			best[child] = 0.0;
+			below[child] = -1;
+			touched.add(child);
+			agenda.add(child, 0.0);
+			while (agenda.hasNext()) {
+				int symbol = agenda.next();
+				if (settled[symbol])
+					continue;
+				settled[symbol] = true;
+				parents.add(symbol);
+				children.add(child);
+				scores.add(best[symbol]);
+				chain.clear();
+				for (int s = below[symbol]; s != child && s != -1; s = below[s]) {
+					chain.add(s);
+				}
+				for (int i = 0; i < chain.size(); i++) {
+					pathSymbols.add(chain.get(i));
+				}
+				pathOffsets.add(pathSymbols.size());
+				for (int r = unaryByChild.start(symbol); r < unaryByChild.end(symbol); r++) {
+					int parent = unaryByChild.parent[r];
+					double score = best[symbol] + unaryByChild.logScore[r];
+					if (!settled[parent] && score > best[parent]) {
+						if (best[parent] == Double.NEGATIVE_INFINITY)
+							touched.add(parent);
+						best[parent] = score;
+						below[parent] = symbol;
+						agenda.add(parent, score);
+					}
+				}
+			}
+			for (int i = 0; i < touched.size(); i++) {
+				int symbol = touched.get(i);
+				best[symbol] = Double.NEGATIVE_INFINITY;
+				settled[symbol] = false;
+			}
+			touched.clear();
+			offsets[child + 1] = parents.size();
+		}
+		double[] logScore = new double[scores.size()];
+		for (int i = 0; i < logScore.length; i++) {
+			logScore[i] = scores.get(i);
+		}
+		return new UnaryClosure(offsets, parents.toArray(), children.toArray(), logScore,
+				pathOffsets.toArray(), pathSymbols.toArray());
+	}
+
+	private BinaryRuleTable buildBinaryTable(int[][] ruleSymbols, double[] scores,
+			int primary, int secondary, int tertiary) {
+		Integer[] order = sortedOrder(ruleSymbols, primary, secondary, tertiary);
+		int[] parent = new int[order.length];
+		int[] left = new int[order.length];
+		int[] right = new int[order.length];
+		double[] logScore = new double[order.length];
+		for (int i = 0; i < order.length; i++) {
+			parent[i] = ruleSymbols[PARENT][order[i]];
+			left[i] = ruleSymbols[LEFT][order[i]];
+			right[i] = ruleSymbols[RIGHT][order[i]];
+			logScore[i] = scores[order[i]];
+		}
+		int[] offsets = buildOffsets(ruleSymbols[primary], order);
+		return new BinaryRuleTable(offsets, parent, left, right, logScore);
+	}
+
+	private UnaryRuleTable buildUnaryTable(int[][] ruleSymbols, double[] scores,
+			int primary, int secondary) {
+		Integer[] order = sortedOrder(ruleSymbols, primary, secondary, secondary);
+		int[] parent = new int[order.length];
+		int[] child = new int[order.length];
+		double[] logScore = new double[order.length];
+		for (int i = 0; i < order.length; i++) {
+			parent[i] = ruleSymbols[0][order[i]];
+			child[i] = ruleSymbols[1][order[i]];
+			logScore[i] = scores[order[i]];
+		}
+		int[] offsets = buildOffsets(ruleSymbols[primary], order);
+		return new UnaryRuleTable(offsets, parent, child, logScore);
+	}
+
+	private static Integer[] sortedOrder(final int[][] ruleSymbols,
+			final int primary, final int secondary, final int tertiary) {
+		Integer[] order = new Integer[ruleSymbols[0].length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int cmp = compareInts(ruleSymbols[primary][a], ruleSymbols[primary][b]);
+				if (cmp != 0) return cmp;
+				cmp = compareInts(ruleSymbols[secondary][a], ruleSymbols[secondary][b]);
+				if (cmp != 0) return cmp;
+				return compareInts(ruleSymbols[tertiary][a], ruleSymbols[tertiary][b]);
+			}
+		});
+		return order;
+	}
+
+	/* Growable list of primitive ints, used while building tables. */
+	private static class IntList {
+		int[] elements = new int[16];
+		int size = 0;
+
+		void add(int element) {
+			if (size == elements.length)
+				elements = Arrays.copyOf(elements, 2 * size);
+			elements[size++] = element;
+		}
+
+		int get(int i) {
+			return elements[i];
+		}
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(elements, size);
+		}
+	}
+
+	private static int compareInts(int x, int y) {
+		return (x < y ? -1 : (x == y ? 0 : 1));
+	}
+
+	private int[] buildOffsets(int[] keys, Integer[] order) {
+		int[] offsets = new int[numSymbols() + 1];
+		for (int i = 0; i < order.length; i++) {
+			offsets[keys[order[i]] + 1]++;
+		}
+		for (int s = 0; s < numSymbols(); s++) {
+			offsets[s + 1] += offsets[s];
+		}
+		return offsets;
+	}
+}
@@ -2,11 +2,18 @@ package cs224n.assignment;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import cs224n.ling.Tree;
 import cs224n.util.CollectionUtils;
+import cs224n.util.ConcurrentCounter;
 import cs224n.util.Counter;
 
 // Grammar ====================================================================
@@ -137,6 +144,113 @@ public class Grammar {
 			this.child = child;
 		}
 	}	
+
+
+	// Tally ======================================================================
+
+	/* Production counts, added to one tree at a time.  Trees are not
+	 * kept, so a grammar can be estimated from a stream of trees in
+	 * memory proportional to the number of distinct rules.  Subclasses
+	 * decide where the counts go: Tally is for one thread, SharedTally
+	 * for several. */
+	abstract static class RuleTally {
+		void addTree(Tree<String> tree) {
+			if (tree.isLeaf()) return;
+			if (tree.isPreTerminal()) return;
+			if (tree.getChildren().size() == 1) {
+				countUnary(makeUnaryRule(tree));
+			}
+			if (tree.getChildren().size() == 2) {
+				countBinary(makeBinaryRule(tree));
+			}
+			if (tree.getChildren().size() < 1 || tree.getChildren().size() > 2) {
+				throw new RuntimeException("Attempted to construct a Grammar with an illegal tree: "+tree);
+			}
+			for (Tree<String> child : tree.getChildren()) {
+				addTree(child);
+			}
+		}
+
+		abstract void countUnary(UnaryRule unaryRule);
+
+		abstract void countBinary(BinaryRule binaryRule);
+
+		/* The finished counts; called once counting is done. */
+		abstract Counter<UnaryRule> unaryRuleCounts();
+
+		abstract Counter<BinaryRule> binaryRuleCounts();
+
+		abstract Counter<String> symbolCounts();
+
+		private static UnaryRule makeUnaryRule(Tree<String> tree) {
+			return new UnaryRule(tree.getLabel(), tree.getChildren().get(0).getLabel());
+		}
+
+		private static BinaryRule makeBinaryRule(Tree<String> tree) {
+			return new BinaryRule(tree.getLabel(), tree.getChildren().get(0).getLabel(), 
+					tree.getChildren().get(1).getLabel());
+		}
+	}
+
+	/* A RuleTally counting into plain Counters, for one thread. */
+	static class Tally extends RuleTally {
+		final Counter<UnaryRule> unaryRuleCounter = new Counter<UnaryRule>();
+		final Counter<BinaryRule> binaryRuleCounter = new Counter<BinaryRule>();
+		final Counter<String> symbolCounter = new Counter<String>();
+
+		void countUnary(UnaryRule unaryRule) {
+			symbolCounter.incrementCount(unaryRule.getParent(), 1.0);
+			unaryRuleCounter.incrementCount(unaryRule, 1.0);
+		}
+
+		void countBinary(BinaryRule binaryRule) {
+			symbolCounter.incrementCount(binaryRule.getParent(), 1.0);
+			binaryRuleCounter.incrementCount(binaryRule, 1.0);
+		}
+
+		Counter<UnaryRule> unaryRuleCounts() {
+			return unaryRuleCounter;
+		}
+
+		Counter<BinaryRule> binaryRuleCounts() {
+			return binaryRuleCounter;
+		}
+
+		Counter<String> symbolCounts() {
+			return symbolCounter;
+		}
+	}
+
+	/* A RuleTally any number of threads may add trees to at once.  Counts
+	 * go to concurrent counters, which never take a global lock, and are
+	 * copied out to plain Counters once counting is done. */
+	static class SharedTally extends RuleTally {
+		final ConcurrentCounter<UnaryRule> unaryRuleCounter = new ConcurrentCounter<UnaryRule>();
+		final ConcurrentCounter<BinaryRule> binaryRuleCounter = new ConcurrentCounter<BinaryRule>();
+		final ConcurrentCounter<String> symbolCounter = new ConcurrentCounter<String>();
+
+		void countUnary(UnaryRule unaryRule) {
+			symbolCounter.incrementCount(unaryRule.getParent(), 1.0);
+			unaryRuleCounter.incrementCount(unaryRule, 1.0);
+		}
+
+		void countBinary(BinaryRule binaryRule) {
+			symbolCounter.incrementCount(binaryRule.getParent(), 1.0);
+			binaryRuleCounter.incrementCount(binaryRule, 1.0);
+		}
+
+		Counter<UnaryRule> unaryRuleCounts() {
+			return unaryRuleCounter.toCounter();
+		}
+
+		Counter<BinaryRule> binaryRuleCounts() {
+			return binaryRuleCounter.toCounter();
+		}
+
+		Counter<String> symbolCounts() {
+			return symbolCounter.toCounter();
+		}
+	}
 	
 	Map<String, List<BinaryRule>> binaryRulesByLeftChild = 
 			new HashMap<String, List<BinaryRule>>();
@@ -159,6 +273,12 @@ public class Grammar {
 		return CollectionUtils.getValueList(unaryRulesByChild, child);
 	}
 
+	/* Packs the rules into integer-indexed, CSR-ordered arrays for
+	 * parsing.  The result does not change if this grammar does. */
+	public CompiledGrammar compile() {
+		return new CompiledGrammar(this);
+	}
+
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		List<String> ruleStrings = new ArrayList<String>();
@@ -195,12 +315,28 @@ public class Grammar {
 	 * productions in the training trees to estimate the probabilities
 	 * for those rules.  */ 
 	public Grammar(List<Tree<String>> trainTrees) {
-		Counter<UnaryRule> unaryRuleCounter = new Counter<UnaryRule>();
-		Counter<BinaryRule> binaryRuleCounter = new Counter<BinaryRule>();
-		Counter<String> symbolCounter = new Counter<String>();
-		for (Tree<String> trainTree : trainTrees) {
-			tallyTree(trainTree, symbolCounter, unaryRuleCounter, binaryRuleCounter);
-		}
+		this(trainTrees, 1);
+	}
+
+	/* Builds the same grammar as Grammar(trainTrees), tallying
+	 * contiguous shards of the trees on up to numThreads threads.  The
+	 * shards all count into one SharedTally; a single shard is counted
+	 * on the calling thread into a plain Tally. */
+	public Grammar(List<Tree<String>> trainTrees, int numThreads) {
+		this(tally(trainTrees, numThreads));
+	}
+
+	/* Builds the same grammar as Grammar(trainTrees) from trees read one
+	 * at a time; no tree is referenced after it has been counted. */
+	public Grammar(Iterator<Tree<String>> trainTrees) {
+		this(tally(trainTrees));
+	}
+
+	/* Estimates rule probabilities from a finished tally. */
+	Grammar(RuleTally tally) {
+		Counter<UnaryRule> unaryRuleCounter = tally.unaryRuleCounts();
+		Counter<BinaryRule> binaryRuleCounter = tally.binaryRuleCounts();
+		Counter<String> symbolCounter = tally.symbolCounts();
 		for (UnaryRule unaryRule : unaryRuleCounter.keySet()) {
 			double unaryProbability = 
 					unaryRuleCounter.getCount(unaryRule) / 
@@ -217,35 +353,44 @@ public class Grammar {
 		}
 	}
 
-	private void tallyTree(Tree<String> tree, Counter<String> symbolCounter,
-			Counter<UnaryRule> unaryRuleCounter, 
-			Counter<BinaryRule> binaryRuleCounter) {
-		if (tree.isLeaf()) return;
-		if (tree.isPreTerminal()) return;
-		if (tree.getChildren().size() == 1) {
-			UnaryRule unaryRule = makeUnaryRule(tree);
-			symbolCounter.incrementCount(tree.getLabel(), 1.0);
-			unaryRuleCounter.incrementCount(unaryRule, 1.0);
-		}
-		if (tree.getChildren().size() == 2) {
-			BinaryRule binaryRule = makeBinaryRule(tree);
-			symbolCounter.incrementCount(tree.getLabel(), 1.0);
-			binaryRuleCounter.incrementCount(binaryRule, 1.0);
-		}
-		if (tree.getChildren().size() < 1 || tree.getChildren().size() > 2) {
-			throw new RuntimeException("Attempted to construct a Grammar with an illegal tree: "+tree);
+	private static Tally tally(Iterator<Tree<String>> trainTrees) {
+		Tally tally = new Tally();
+		while (trainTrees.hasNext()) {
+			tally.addTree(trainTrees.next());
 		}
-		for (Tree<String> child : tree.getChildren()) {
-			tallyTree(child, symbolCounter, unaryRuleCounter,  binaryRuleCounter);
-		}
-	}
-
-	private UnaryRule makeUnaryRule(Tree<String> tree) {
-		return new UnaryRule(tree.getLabel(), tree.getChildren().get(0).getLabel());
+		return tally;
 	}
 
-	private BinaryRule makeBinaryRule(Tree<String> tree) {
-		return new BinaryRule(tree.getLabel(), tree.getChildren().get(0).getLabel(), 
-				tree.getChildren().get(1).getLabel());
+	private static RuleTally tally(List<Tree<String>> trainTrees, int numThreads) {
+		int numShards = Math.max(1, Math.min(numThreads, trainTrees.size()));
+		if (numShards == 1)
+			return tally(trainTrees.iterator());
+		final SharedTally tally = new SharedTally();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < numShards; i++) {
+			final List<Tree<String>> shardTrees = trainTrees.subList(
+					i * trainTrees.size() / numShards, (i + 1) * trainTrees.size() / numShards);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					for (Tree<String> trainTree : shardTrees) {
+						tally.addTree(trainTree);
+					}
+					return null;
+				}
+			});
+		}
+		ExecutorService workers = Executors.newFixedThreadPool(numShards);
+		try {
+			for (Future<Void> future : workers.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			workers.shutdown();
+		}
+		return tally;
 	}
 }
@@ -0,0 +1,260 @@
+package cs224n.assignment;
+
+import cs224n.ling.Tree;
+import cs224n.util.Index;
+import cs224n.util.IndexedPriorityQueue;
+import java.util.*;
+
+/**
+ * Lazy k-best derivations from a filled PCFGParser chart, after Huang and
+ * Chiang (2005), algorithm 3.  The chart is read as a hypergraph with two
+ * nodes per entry: the base node (lexical or binary derivations) and the
+ * unary node (one unary closure chain on top of a base node).  Each node
+ * keeps the derivations found so far, best first, and a heap of
+ * candidates; asking for its j-th derivation only pulls in as many
+ * derivations of the nodes below as that needs.
+ *
+ * A derivation is a hyperedge plus the rank of the derivation used at
+ * each of its tails, so derivations and the trees built from them are
+ * shared by every larger derivation which uses them.  Unary chains come
+ * from the closure, so only the best chain between two symbols is ever
+ * considered, as in the Viterbi parse.
+ *
+ * Nodes live in an array indexed by chart entry and layer, and each
+ * node's candidates are handles into its list of queued derivations,
+ * kept in an IndexedPriorityQueue, so the heap holds no boxed scores.
+ */
+class KBestExtractor {
+    private static final int BASE = 0;
+    private static final int UNARY = 1;
+
+    /* A hyperedge with ranks for its tails.  In the base layer, rule is a
+     * binaryByParent index and split its midpoint, or split is
+     * Chart.LEXICAL; in the unary layer, rule is a closure entry. */
+    private static class Derivation {
+        final int split;
+        final int rule;
+        final int leftRank;
+        final int rightRank;
+        final double score;
+        Tree<String> tree;
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Derivation))
+                return false;
+            Derivation d = (Derivation) o;
+            return split == d.split && rule == d.rule
+                && leftRank == d.leftRank && rightRank == d.rightRank;
+        }
+
+        public int hashCode() {
+            return ((split * 31 + rule) * 31 + leftRank) * 31 + rightRank;
+        }
+
+        Derivation(int split, int rule, int leftRank, int rightRank, double score) {
+            this.split = split;
+            this.rule = rule;
+            this.leftRank = leftRank;
+            this.rightRank = rightRank;
+            this.score = score;
+        }
+    }
+
+    private class Node {
+        final int start;
+        final int end;
+        final int symbol;
+        final int layer;
+        final List<Derivation> derivations = new ArrayList<Derivation>();
+        // every derivation ever queued, by handle in the candidate queue
+        final List<Derivation> queued = new ArrayList<Derivation>();
+        final Set<Derivation> queuedSet = new HashSet<Derivation>();
+        final IndexedPriorityQueue candidates = new IndexedPriorityQueue(4);
+
+        Node(int start, int end, int symbol, int layer) {
+            this.start = start;
+            this.end = end;
+            this.symbol = symbol;
+            this.layer = layer;
+        }
+    }
+
+    private final CompiledGrammar grammar;
+    private final PCFGParser.Chart chart;
+    private final List<String> sentence;
+    // by 2 * chart index + layer
+    private final Node[] nodes;
+
+    /* Returns the rank-th best annotated tree of symbol over the whole
+     * sentence (counting from zero), or null if there are not that many. */
+    Tree<String> getTree(int symbol, int rank) {
+        Node node = getNode(0, sentence.size(), symbol, UNARY);
+        Derivation derivation = getDerivation(node, rank);
+        return (derivation == null ? null : buildTree(node, derivation));
+    }
+
+    /* Log probability of the rank-th best derivation, as for getTree(). */
+    double getScore(int symbol, int rank) {
+        Node node = getNode(0, sentence.size(), symbol, UNARY);
+        Derivation derivation = getDerivation(node, rank);
+        return (derivation == null ? Double.NEGATIVE_INFINITY : derivation.score);
+    }
+
+    private Node getNode(int start, int end, int symbol, int layer) {
+        int key = 2 * chart.index(start, end, symbol) + layer;
+        Node node = nodes[key];
+        if (node == null) {
+            node = new Node(start, end, symbol, layer);
+            nodes[key] = node;
+            initialize(node);
+        }
+        return node;
+    }
+
+    private Derivation getDerivation(Node node, int rank) {
+        while (node.derivations.size() <= rank) {
+            if (!node.derivations.isEmpty())
+                pushSuccessors(node, node.derivations.get(node.derivations.size() - 1));
+            if (node.candidates.isEmpty())
+                return null;
+            node.derivations.add(node.queued.get(node.candidates.pop()));
+        }
+        return node.derivations.get(rank);
+    }
+
+    /* Queues the best derivation of every incoming hyperedge.  The best
+     * derivation of each tail is its Viterbi chart score, so nothing below
+     * the node needs to be expanded yet. */
+    private void initialize(Node node) {
+        int start = node.start;
+        int end = node.end;
+        int cell = chart.cell(start, end);
+        if (node.layer == UNARY) {
+            CompiledGrammar.UnaryClosure closure = grammar.unaryClosureByChild;
+            for (int i = closure.parentStart(node.symbol), last = closure.parentEnd(node.symbol);
+                 i < last; i++) {
+                int r = closure.byParent[i];
+                double childScore = chart.score[cell + closure.child[r]];
+                if (childScore != Double.NEGATIVE_INFINITY)
+                    queue(node, new Derivation(0, r, 0, 0, childScore + closure.logScore[r]));
+            }
+            return;
+        }
+        if (end - start == 1) {
+            double score = chart.score[cell + node.symbol];
+            if (chart.backSplit[cell + node.symbol] == PCFGParser.Chart.LEXICAL)
+                queue(node, new Derivation(PCFGParser.Chart.LEXICAL, 0, 0, 0, score));
+            return;
+        }
+        CompiledGrammar.BinaryRuleTable rules = grammar.binaryByParent;
+        for (int split = start + 1; split < end; split++) {
+            int leftCell = chart.cell(start, split);
+            int rightCell = chart.cell(split, end);
+            for (int r = rules.start(node.symbol), last = rules.end(node.symbol); r < last; r++) {
+                double leftScore = chart.unaryScore[leftCell + rules.left[r]];
+                double rightScore = chart.unaryScore[rightCell + rules.right[r]];
+                if (leftScore == Double.NEGATIVE_INFINITY || rightScore == Double.NEGATIVE_INFINITY)
+                    continue;
+                queue(node, new Derivation(split, r, 0, 0,
+                                           leftScore + rightScore + rules.logScore[r]));
+            }
+        }
+    }
+
+    private void queue(Node node, Derivation derivation) {
+        if (!node.queuedSet.add(derivation))
+            return;
+        int handle = node.queued.size();
+        node.queued.add(derivation);
+        node.candidates.ensureCapacity(Integer.highestOneBit(handle) << 1);
+        node.candidates.add(handle, derivation.score);
+    }
+
+    /* Queues the derivations one rank worse than the given one in exactly
+     * one tail, where that tail has such a derivation. */
+    private void pushSuccessors(Node node, Derivation derivation) {
+        if (node.layer == UNARY) {
+            Node child = getChild(node, derivation);
+            Derivation next = getDerivation(child, derivation.leftRank + 1);
+            if (next != null) {
+                queue(node, new Derivation(0, derivation.rule, derivation.leftRank + 1, 0,
+                        next.score + grammar.unaryClosureByChild.logScore[derivation.rule]));
+            }
+            return;
+        }
+        if (derivation.split == PCFGParser.Chart.LEXICAL)
+            return;
+        Node left = getLeft(node, derivation);
+        Node right = getRight(node, derivation);
+        double ruleScore = grammar.binaryByParent.logScore[derivation.rule];
+        Derivation nextLeft = getDerivation(left, derivation.leftRank + 1);
+        if (nextLeft != null) {
+            Derivation rightDerivation = getDerivation(right, derivation.rightRank);
+            queue(node, new Derivation(derivation.split, derivation.rule,
+                    derivation.leftRank + 1, derivation.rightRank,
+                    nextLeft.score + rightDerivation.score + ruleScore));
+        }
+        Derivation nextRight = getDerivation(right, derivation.rightRank + 1);
+        if (nextRight != null) {
+            Derivation leftDerivation = getDerivation(left, derivation.leftRank);
+            queue(node, new Derivation(derivation.split, derivation.rule,
+                    derivation.leftRank, derivation.rightRank + 1,
+                    leftDerivation.score + nextRight.score + ruleScore));
+        }
+    }
+
+    private Node getChild(Node node, Derivation derivation) {
+        int child = grammar.unaryClosureByChild.child[derivation.rule];
+        return getNode(node.start, node.end, child, BASE);
+    }
+
+    private Node getLeft(Node node, Derivation derivation) {
+        int left = grammar.binaryByParent.left[derivation.rule];
+        return getNode(node.start, derivation.split, left, UNARY);
+    }
+
+    private Node getRight(Node node, Derivation derivation) {
+        int right = grammar.binaryByParent.right[derivation.rule];
+        return getNode(derivation.split, node.end, right, UNARY);
+    }
+
+    /* Builds (once) the annotated tree of a derivation out of the trees
+     * of its tails' derivations. */
+    private Tree<String> buildTree(Node node, Derivation derivation) {
+        if (derivation.tree != null)
+            return derivation.tree;
+        Index<String> symbols = grammar.getSymbols();
+        String label = symbols.get(node.symbol);
+        Tree<String> tree;
+        if (node.layer == UNARY) {
+            Node child = getChild(node, derivation);
+            tree = buildTree(child, getDerivation(child, derivation.leftRank));
+            if (child.symbol != node.symbol) {
+                int[] path = grammar.unaryClosureByChild.getPath(derivation.rule);
+                for (int i = path.length - 1; i >= 0; i--) {
+                    tree = new Tree<String>(symbols.get(path[i]), Collections.singletonList(tree));
+                }
+                tree = new Tree<String>(label, Collections.singletonList(tree));
+            }
+        } else if (derivation.split == PCFGParser.Chart.LEXICAL) {
+            Tree<String> leaf = new Tree<String>(sentence.get(node.start));
+            tree = new Tree<String>(label, Collections.singletonList(leaf));
+        } else {
+            Node left = getLeft(node, derivation);
+            Node right = getRight(node, derivation);
+            List<Tree<String>> children = new ArrayList<Tree<String>>(2);
+            children.add(buildTree(left, getDerivation(left, derivation.leftRank)));
+            children.add(buildTree(right, getDerivation(right, derivation.rightRank)));
+            tree = new Tree<String>(label, children);
+        }
+        derivation.tree = tree;
+        return tree;
+    }
+
+    KBestExtractor(CompiledGrammar grammar, PCFGParser.Chart chart, List<String> sentence) {
+        this.grammar = grammar;
+        this.chart = chart;
+        this.sentence = sentence;
+        this.nodes = new Node[2 * (int) PCFGParser.Chart.size(sentence.size(), chart.numSymbols)];
+    }
+}
@@ -1,70 +1,552 @@
 package cs224n.assignment;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.PrimitiveIterator;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import cs224n.ling.Tree;
-import cs224n.util.Counter;
-import cs224n.util.CounterMap;
+import cs224n.util.Index;
+import cs224n.util.IntCounter;
+import cs224n.util.IntCounterMap;
 
 // Lexicon ====================================================================
 
 /**
  * Simple default implementation of a lexicon, which scores word,
  * tag pairs with a smoothed estimate of P(tag|word)/P(tag).
+ *
+ * Rare and unknown words back off to the tag distribution of their
+ * shape signature (capitalization, digits, dashes, suffix; see
+ * getSignature), pooled over the rare words of the training data.
+ *
+ * Words, tags and signatures are numbered through Indexes as they are
+ * first seen, and all counts are kept in IntCounters over those ids.
+ * After training the lexicon is frozen: every known word and every
+ * signature gets a vector of log scores
+ * indexed by tag id, so a parser can seed a chart cell from one array
+ * instead of scoring each tag separately.  An unknown word shares the
+ * vector of its signature; recent unknown words remember theirs in a
+ * fixed-size, direct-mapped cache that readers share without a lock.
+ *
+ * write() saves only the frozen state, and a lexicon read() back keeps
+ * no counts: it scores exactly as the saved one did, but cannot take
+ * more taggings or be frozen again.
  */
 public class Lexicon {
 
-	CounterMap<String,String> wordToTagCounters = new CounterMap<String, String>();
+	/* Words seen fewer times than this get smoothed tag distributions. */
+	static final double RARE_WORD_COUNT = 10.0;
+
+	/* Slots in the unknown-word cache; a power of two. */
+	static final int WORD_CACHE_SIZE = 1 << 16;
+
+	Index<String> wordIndex = new Index<String>();
+	Index<String> tagIndex = new Index<String>();
+	Index<String> signatureIndex = new Index<String>();
+
+	IntCounterMap wordToTagCounters = new IntCounterMap();
 	double totalTokens = 0.0;
 	double totalWordTypes = 0.0;
-	Counter<String> tagCounter = new Counter<String>();
-	Counter<String> wordCounter = new Counter<String>();
-	Counter<String> typeTagCounter = new Counter<String>();
+	IntCounter tagCounter = new IntCounter(0);
+	IntCounter wordCounter = new IntCounter(0);
+	IntCounter typeTagCounter = new IntCounter(0);
+	IntCounterMap signatureToTagCounters = new IntCounterMap();
+	IntCounter signatureCounter = new IntCounter(0);
+
+	double[][] wordLogScores;
+	double[] unknownLogScores;
+	double[][] signatureLogScores;
+	final WordCache wordCache = new WordCache(WORD_CACHE_SIZE);
+	int[][] wordSeenTags;
+	boolean[] rareWords;
+	int[] openClassTags;
+	private volatile TagDictionary tagDictionary;
 
 	public Set<String> getAllTags() {
-		return tagCounter.keySet();
+		return new LinkedHashSet<String>(tagIndex);
 	}
 
 	public boolean isKnown(String word) {
-		return wordCounter.keySet().contains(word);
+		return wordIndex.contains(word);
 	}
 
-	/* Returns a smoothed estimate of P(word|tag) */
+	/* Returns a smoothed estimate of P(word|tag), or zero for a tag the
+	 * lexicon has never seen.  Read off the frozen score vectors, which
+	 * a lexicon loaded by read() has even though it has no counts. */
 	public double scoreTagging(String word, String tag) {
+		int tagId = tagIndex.indexOf(tag);
+		if (tagId < 0)
+			return 0.0;
+		return Math.exp(getLogScores(word)[tagId]);
+	}
+
+	/* Ids may be -1 for words and signatures the lexicon has not seen,
+	 * which have no counts. */
+	private double scoreTagging(double c_word, double c_tag_and_word, int tag,
+			int signature) {
 		double p_tag = tagCounter.getCount(tag) / totalTokens;
-		double c_word = wordCounter.getCount(word);
-		double c_tag_and_word = wordToTagCounters.getCount(word, tag);
-		if (c_word < 10) { // rare or unknown
+		if (c_word < RARE_WORD_COUNT) { // rare or unknown
 			c_word += 1.0;
-			c_tag_and_word += typeTagCounter.getCount(tag) / totalWordTypes;
+			c_tag_and_word += scoreSignature(signature, tag);
 		}
 		double p_word = (1.0 + c_word) / (totalTokens + totalWordTypes);
 		double p_tag_given_word = c_tag_and_word / c_word;
 		return p_tag_given_word / p_tag * p_word;
 	}
 
+	/* Smoothed P(tag|signature), backing off to the distribution of tags
+	 * over new word types for signatures with few rare words. */
+	private double scoreSignature(int signature, int tag) {
+		double p_tag_given_type = typeTagCounter.getCount(tag) / totalWordTypes;
+		double c_signature = signatureCounter.getCount(signature);
+		double c_tag_and_signature = signatureToTagCounters.getCount(signature, tag);
+		return (c_tag_and_signature + p_tag_given_type) / (c_signature + 1.0);
+	}
+
+	/* Maps a word to a word class by its shape, e.g. "UNK-CAPS-NUM" for
+	 * "F16" or "UNK-LC-ing" for "parsing". */
+	public static String getSignature(String word) {
+		StringBuilder sb = new StringBuilder("UNK");
+		if (word.length() == 0)
+			return sb.toString();
+		boolean hasDigit = false;
+		boolean hasDash = false;
+		boolean hasLower = false;
+		boolean hasUpper = false;
+		for (int i = 0; i < word.length(); i++) {
+			char ch = word.charAt(i);
+			if (Character.isDigit(ch))
+				hasDigit = true;
+			else if (ch == '-')
+				hasDash = true;
+			else if (Character.isLowerCase(ch))
+				hasLower = true;
+			else if (Character.isUpperCase(ch))
+				hasUpper = true;
+		}
+		if (Character.isUpperCase(word.charAt(0)))
+			sb.append(hasLower ? "-INITC" : "-CAPS");
+		else if (hasUpper)
+			sb.append("-MIXC");
+		else if (hasLower)
+			sb.append("-LC");
+		if (hasDigit)
+			sb.append("-NUM");
+		if (hasDash)
+			sb.append("-DASH");
+		String lower = word.toLowerCase(Locale.ROOT);
+		int length = lower.length();
+		if (length >= 3 && lower.endsWith("s") && "siu".indexOf(lower.charAt(length - 2)) < 0) {
+			sb.append("-s");
+		} else if (length >= 5 && hasLower && !hasDash && !hasDigit) {
+			for (String suffix : SUFFIXES) {
+				if (lower.endsWith(suffix)) {
+					sb.append('-').append(suffix);
+					break;
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static final String[] SUFFIXES = {
+		"ing", "ion", "ity", "est", "ed", "er", "ly", "al", "y"
+	};
+
+	/* Tags in the order they were first seen; positions in getLogScores()
+	 * vectors are the indexes of this Index. */
+	public Index<String> getTagIndex() {
+		return tagIndex;
+	}
+
+	/* Log of scoreTagging(word, tag) for every tag, by tag id.  The array
+	 * is shared (by all unknown words, in particular), so callers must
+	 * not modify it. */
+	public double[] getLogScores(String word) {
+		int wordId = wordIndex.indexOf(word);
+		if (wordId >= 0)
+			return wordLogScores[wordId];
+		double[] logScores = wordCache.get(word);
+		if (logScores == null) {
+			int signatureId = signatureIndex.indexOf(getSignature(word));
+			logScores = (signatureId < 0 ? unknownLogScores : signatureLogScores[signatureId]);
+			wordCache.put(word, logScores);
+		}
+		return logScores;
+	}
+
+	/* Tags seen with the word in training; empty for unknown words. */
+	public Set<String> getSeenTags(String word) {
+		int wordId = wordIndex.indexOf(word);
+		if (wordId < 0)
+			return Collections.emptySet();
+		Set<String> seenTags = new LinkedHashSet<String>();
+		for (int tag : wordSeenTags[wordId]) {
+			seenTags.add(tagIndex.get(tag));
+		}
+		return seenTags;
+	}
+
+	/* Ids of the tags a parser should consider for a word: the tags seen
+	 * with it in training, and for rare or unknown words also the
+	 * numOpenClassTags tags which the most word types were first seen
+	 * with.  Other tags of a frequent word already score zero.  The
+	 * candidates of every word are built once per numOpenClassTags (see
+	 * TagDictionary), so a lookup allocates nothing; the array is shared,
+	 * and callers must not modify it. */
+	public int[] getTagDictionary(String word, int numOpenClassTags) {
+		TagDictionary dictionary = tagDictionary;
+		if (dictionary == null || dictionary.numOpenClassTags != numOpenClassTags) {
+			dictionary = new TagDictionary(numOpenClassTags);
+			tagDictionary = dictionary;
+		}
+		int wordId = wordIndex.indexOf(word);
+		return (wordId >= 0 ? dictionary.wordTags[wordId] : dictionary.unknownTags);
+	}
+
+	/* Candidate tags of every known word and of unknown words, for one
+	 * number of open-class tags.  Built from the frozen lexicon and never
+	 * changed, so threads may share one without locking. */
+	private class TagDictionary {
+		final int numOpenClassTags;
+		final int[][] wordTags;
+		final int[] unknownTags;
+
+		TagDictionary(int numOpenClassTags) {
+			this.numOpenClassTags = numOpenClassTags;
+			int numOpen = Math.min(numOpenClassTags, openClassTags.length);
+			unknownTags = Arrays.copyOf(openClassTags, numOpen);
+			wordTags = new int[wordSeenTags.length][];
+			boolean[] chosen = new boolean[tagIndex.size()];
+			for (int wordId = 0; wordId < wordTags.length; wordId++) {
+				int[] seenTags = wordSeenTags[wordId];
+				if (! rareWords[wordId]) {
+					wordTags[wordId] = seenTags;
+					continue;
+				}
+				int[] candidates = Arrays.copyOf(seenTags, seenTags.length + numOpen);
+				int numCandidates = seenTags.length;
+				for (int tag : seenTags)
+					chosen[tag] = true;
+				for (int tag : unknownTags) {
+					if (! chosen[tag])
+						candidates[numCandidates++] = tag;
+				}
+				for (int tag : seenTags)
+					chosen[tag] = false;
+				wordTags[wordId] = Arrays.copyOf(candidates, numCandidates);
+			}
+		}
+	}
+
+	/* The highest-scoring tag for a word, ties going to the first tag. */
+	public String getBestTag(String word) {
+		double[] logScores = getLogScores(word);
+		int bestTag = 0;
+		for (int tag = 1; tag < logScores.length; tag++) {
+			if (logScores[tag] > logScores[bestTag])
+				bestTag = tag;
+		}
+		return tagIndex.get(bestTag);
+	}
+
+	/* The best log score each tag gives any word, known or unknown, by
+	 * tag id: an upper bound on getLogScores(word) for every word. */
+	public double[] getBestLogScores() {
+		double[] best = unknownLogScores.clone();
+		for (double[][] vectors : new double[][][] { wordLogScores, signatureLogScores }) {
+			for (double[] logScores : vectors) {
+				for (int tag = 0; tag < best.length; tag++) {
+					best[tag] = Math.max(best[tag], logScores[tag]);
+				}
+			}
+		}
+		return best;
+	}
+
+	/* Precomputes the score vectors of the words and signatures seen so
+	 * far.  Must be called again if more taggings are tallied. */
+	public void freeze() {
+		int numWords = wordIndex.size();
+		tagDictionary = null;
+		// rare words' taggings are pooled by signature for the unknown path
+		signatureIndex = new Index<String>();
+		signatureToTagCounters = new IntCounterMap();
+		signatureCounter = new IntCounter(0);
+		wordSeenTags = new int[numWords][];
+		rareWords = new boolean[numWords];
+		for (int wordId = 0; wordId < numWords; wordId++) {
+			IntCounter tagCounts = wordToTagCounters.getCounter(wordId);
+			wordSeenTags[wordId] = new int[tagCounts.size()];
+			int i = 0;
+			for (PrimitiveIterator.OfInt it = tagCounts.keySet(); it.hasNext(); ) {
+				wordSeenTags[wordId][i++] = it.nextInt();
+			}
+			Arrays.sort(wordSeenTags[wordId]);
+			double c_word = wordCounter.getCount(wordId);
+			rareWords[wordId] = c_word < RARE_WORD_COUNT;
+			if (! rareWords[wordId])
+				continue;
+			String signature = getSignature(wordIndex.get(wordId));
+			signatureIndex.add(signature);
+			int signatureId = signatureIndex.indexOf(signature);
+			for (int tag : wordSeenTags[wordId]) {
+				signatureToTagCounters.incrementCount(signatureId, tag, tagCounts.getCount(tag));
+			}
+			signatureCounter.incrementCount(signatureId, c_word);
+		}
+		wordLogScores = new double[numWords][];
+		for (int wordId = 0; wordId < numWords; wordId++) {
+			int signatureId = -1;
+			if (rareWords[wordId])
+				signatureId = signatureIndex.indexOf(getSignature(wordIndex.get(wordId)));
+			wordLogScores[wordId] = computeLogScores(wordId, signatureId);
+		}
+		// open-class tags are those new word types keep turning up with
+		Integer[] openTags = new Integer[tagIndex.size()];
+		for (int tag = 0; tag < openTags.length; tag++) {
+			openTags[tag] = tag;
+		}
+		Arrays.sort(openTags, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int cmp = Double.compare(typeTagCounter.getCount(b), typeTagCounter.getCount(a));
+				return (cmp != 0 ? cmp : tagIndex.get(a).compareTo(tagIndex.get(b)));
+			}
+		});
+		int numOpenTags = 0;
+		openClassTags = new int[openTags.length];
+		for (int tag : openTags) {
+			if (typeTagCounter.getCount(tag) > 0.0)
+				openClassTags[numOpenTags++] = tag;
+		}
+		openClassTags = Arrays.copyOf(openClassTags, numOpenTags);
+		// an unknown word scores as a word of its signature seen zero times
+		signatureLogScores = new double[signatureIndex.size()][];
+		for (int signatureId = 0; signatureId < signatureIndex.size(); signatureId++) {
+			signatureLogScores[signatureId] = computeLogScores(-1, signatureId);
+		}
+		unknownLogScores = computeLogScores(-1, -1);
+		wordCache.clear();
+	}
+
+	private double[] computeLogScores(int wordId, int signatureId) {
+		double c_word = wordCounter.getCount(wordId);
+		double[] logScores = new double[tagIndex.size()];
+		for (int tag = 0; tag < logScores.length; tag++) {
+			double c_tag_and_word = wordToTagCounters.getCount(wordId, tag);
+			logScores[tag] = Math.log(scoreTagging(c_word, c_tag_and_word, tag, signatureId));
+		}
+		return logScores;
+	}
+
+	/* Writes the frozen lexicon: the word, tag and signature indexes, the
+	 * score vectors and the tag dictionary tables. */
+	void write(DataOutputStream out) throws IOException {
+		int numTags = tagIndex.size();
+		ModelFile.writeIndex(out, wordIndex);
+		ModelFile.writeIndex(out, tagIndex);
+		ModelFile.writeIndex(out, signatureIndex);
+		ModelFile.writeDoubleRows(out, wordLogScores, numTags);
+		ModelFile.writeDoubles(out, unknownLogScores);
+		ModelFile.writeDoubleRows(out, signatureLogScores, numTags);
+		ModelFile.writeIntRows(out, wordSeenTags);
+		ModelFile.writeBooleans(out, rareWords);
+		ModelFile.writeInts(out, openClassTags);
+	}
+
+	static Lexicon read(ByteBuffer in) {
+		Lexicon lexicon = new Lexicon();
+		lexicon.wordIndex = ModelFile.readIndex(in);
+		lexicon.tagIndex = ModelFile.readIndex(in);
+		lexicon.signatureIndex = ModelFile.readIndex(in);
+		lexicon.wordLogScores = ModelFile.readDoubleRows(in);
+		lexicon.unknownLogScores = ModelFile.readDoubles(in);
+		lexicon.signatureLogScores = ModelFile.readDoubleRows(in);
+		lexicon.wordSeenTags = ModelFile.readIntRows(in);
+		lexicon.rareWords = ModelFile.readBooleans(in);
+		lexicon.openClassTags = ModelFile.readInts(in);
+		return lexicon;
+	}
+
+	private Lexicon() {
+	}
+
+	/* Unknown words and their score vectors, one per slot by hash.  A
+	 * slot holds an immutable entry, so a reader sees either a whole
+	 * entry or none; racing writers just overwrite each other and the
+	 * loser recomputes its signature next time.  No lock is taken. */
+	static class WordCache {
+		private static class Entry {
+			final String word;
+			final double[] logScores;
+
+			Entry(String word, double[] logScores) {
+				this.word = word;
+				this.logScores = logScores;
+			}
+		}
+
+		private final Entry[] slots;
+
+		WordCache(int size) {
+			slots = new Entry[size];
+		}
+
+		private int slot(String word) {
+			int h = word.hashCode();
+			return (h ^ (h >>> 16)) & (slots.length - 1);
+		}
+
+		double[] get(String word) {
+			Entry entry = slots[slot(word)];
+			return (entry != null && entry.word.equals(word) ? entry.logScores : null);
+		}
+
+		void put(String word, double[] logScores) {
+			slots[slot(word)] = new Entry(word, logScores);
+		}
+
+		void clear() {
+			Arrays.fill(slots, null);
+		}
+	}
+
 	/* Builds a lexicon from the observed tags in a list of training trees. */
 	public Lexicon(List<Tree<String>> trainTrees) {
-		for (Tree<String> trainTree : trainTrees) {
+		this(trainTrees, 1);
+	}
+
+	/* Builds the same lexicon as Lexicon(trainTrees) from trees read one
+	 * at a time; no tree is referenced after it has been counted. */
+	public Lexicon(Iterator<Tree<String>> trainTrees) {
+		this(tally(trainTrees));
+	}
+
+	/* Builds and freezes a lexicon from a finished tally. */
+	Lexicon(Tally tally) {
+		merge(tally);
+		freeze();
+	}
+
+	private static Tally tally(Iterator<Tree<String>> trainTrees) {
+		Tally tally = new Tally();
+		while (trainTrees.hasNext()) {
+			tally.addTree(trainTrees.next());
+		}
+		return tally;
+	}
+
+	/* Builds the same lexicon as Lexicon(trainTrees), tallying contiguous
+	 * shards of the trees on up to numThreads threads.  Each shard is
+	 * counted privately and the shards are merged in order, so word and
+	 * tag ids come out just as a sequential pass would number them. */
+	public Lexicon(List<Tree<String>> trainTrees, int numThreads) {
+		int numShards = Math.max(1, Math.min(numThreads, trainTrees.size()));
+		List<Callable<Tally>> tasks = new ArrayList<Callable<Tally>>();
+		for (int i = 0; i < numShards; i++) {
+			final List<Tree<String>> shardTrees = trainTrees.subList(
+					i * trainTrees.size() / numShards, (i + 1) * trainTrees.size() / numShards);
+			tasks.add(new Callable<Tally>() {
+				public Tally call() {
+					Tally tally = new Tally();
+					for (Tree<String> trainTree : shardTrees) {
+						tally.addTree(trainTree);
+					}
+					return tally;
+				}
+			});
+		}
+		if (numShards == 1) {
+			try {
+				merge(tasks.get(0).call());
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		} else {
+			ExecutorService workers = Executors.newFixedThreadPool(numShards);
+			try {
+				for (Future<Tally> future : workers.invokeAll(tasks)) {
+					merge(future.get());
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			} finally {
+				workers.shutdown();
+			}
+		}
+		freeze();
+	}
+
+	/* Adds a tally's counts, numbering its new words and tags in the
+	 * order the tally first saw them. */
+	private void merge(Tally tally) {
+		int[] tagIds = new int[tally.tags.size()];
+		for (int tag = 0; tag < tagIds.length; tag++) {
+			tagIndex.add(tally.tags.get(tag));
+			tagIds[tag] = tagIndex.indexOf(tally.tags.get(tag));
+		}
+		for (int word = 0; word < tally.words.size(); word++) {
+			if (wordIndex.add(tally.words.get(word))) {
+				totalWordTypes += 1.0;
+				typeTagCounter.incrementCount(tagIds[tally.firstTags[word]], 1.0);
+			}
+			int wordId = wordIndex.indexOf(tally.words.get(word));
+			IntCounter tagCounts = tally.wordToTagCounters.getCounter(word);
+			for (PrimitiveIterator.OfInt it = tagCounts.keySet(); it.hasNext(); ) {
+				int tag = it.nextInt();
+				double count = tagCounts.getCount(tag);
+				totalTokens += count;
+				tagCounter.incrementCount(tagIds[tag], count);
+				wordCounter.incrementCount(wordId, count);
+				wordToTagCounters.incrementCount(wordId, tagIds[tag], count);
+			}
+		}
+	}
+
+	/* Taggings of a shard or stream of training trees, with their own
+	 * word and tag ids.  Trees are not kept, so the tally grows with the
+	 * vocabulary rather than the corpus. */
+	static class Tally {
+		final Index<String> words = new Index<String>();
+		final Index<String> tags = new Index<String>();
+		final IntCounterMap wordToTagCounters = new IntCounterMap();
+		/* The tag each word was first seen with, by word id. */
+		int[] firstTags = new int[16];
+
+		void addTree(Tree<String> trainTree) {
 			List<String> words = trainTree.getYield();
 			List<String> tags = trainTree.getPreTerminalYield();
 			for (int position = 0; position < words.size(); position++) {
-				String word = words.get(position);
-				String tag = tags.get(position);
-				tallyTagging(word, tag);
+				tallyTagging(words.get(position), tags.get(position));
 			}
 		}
-	}
 
-	private void tallyTagging(String word, String tag) {
-		if (! isKnown(word)) {
-			totalWordTypes += 1.0;
-			typeTagCounter.incrementCount(tag, 1.0);
+		void tallyTagging(String word, String tag) {
+			tags.add(tag);
+			int tagId = tags.indexOf(tag);
+			if (words.add(word)) {
+				if (words.size() > firstTags.length)
+					firstTags = Arrays.copyOf(firstTags, 2 * firstTags.length);
+				firstTags[words.size() - 1] = tagId;
+			}
+			wordToTagCounters.incrementCount(words.indexOf(word), tagId, 1.0);
 		}
-		totalTokens += 1.0;
-		tagCounter.incrementCount(tag, 1.0);
-		wordCounter.incrementCount(word, 1.0);
-		wordToTagCounters.incrementCount(word, tag, 1.0);
 	}
 }
@@ -0,0 +1,174 @@
+package cs224n.assignment;
+
+import cs224n.util.Index;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Primitive sections of a saved parser model (see PCFGParser.save()).
+ * Everything is big-endian, as DataOutputStream writes it; an array is
+ * its length followed by its elements, and a string table is its size
+ * followed by each string's UTF-8 length and bytes.
+ *
+ * Loading is a plain binary decode, not a memory-mapped model: each
+ * table is copied out of the buffer into an ordinary heap array, once,
+ * since the parser's loops index arrays.  Every length is checked
+ * against the bytes left before anything is allocated, so a corrupt
+ * length throws IllegalArgumentException rather than exhausting the
+ * heap.
+ */
+class ModelFile {
+    static final int MAGIC = 0x50434647; // "PCFG"
+    static final int VERSION = 1;
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    /* Reads a count of elements of the given size in bytes, checking
+     * that the buffer still holds that many. */
+    private static int readLength(ByteBuffer in, int elementSize) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining() / elementSize)
+            throw new IllegalArgumentException("Bad length " + length);
+        return length;
+    }
+
+    static int[] readInts(ByteBuffer in) {
+        int[] values = new int[readLength(in, 4)];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + 4 * values.length);
+        return values;
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    static double[] readDoubles(ByteBuffer in) {
+        double[] values = new double[readLength(in, 8)];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + 8 * values.length);
+        return values;
+    }
+
+    /* Rows of equal width, written as one flat array after the width. */
+    static void writeDoubleRows(DataOutputStream out, double[][] rows, int width)
+            throws IOException {
+        out.writeInt(width);
+        out.writeInt(rows.length * width);
+        for (double[] row : rows) {
+            for (double value : row) {
+                out.writeDouble(value);
+            }
+        }
+    }
+
+    /* Each row is copied straight out of the buffer. */
+    static double[][] readDoubleRows(ByteBuffer in) {
+        int width = in.getInt();
+        int length = readLength(in, 8);
+        if (width < 0 || (width == 0 ? length != 0 : length % width != 0))
+            throw new IllegalArgumentException("Bad row width " + width);
+        DoubleBuffer values = in.asDoubleBuffer();
+        double[][] rows = new double[width == 0 ? 0 : length / width][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new double[width];
+            values.get(rows[i]);
+        }
+        in.position(in.position() + 8 * length);
+        return rows;
+    }
+
+    /* Rows of any width, written as row offsets and one flat array. */
+    static void writeIntRows(DataOutputStream out, int[][] rows) throws IOException {
+        int[] offsets = new int[rows.length + 1];
+        for (int i = 0; i < rows.length; i++) {
+            offsets[i + 1] = offsets[i] + rows[i].length;
+        }
+        writeInts(out, offsets);
+        out.writeInt(offsets[rows.length]);
+        for (int[] row : rows) {
+            for (int value : row) {
+                out.writeInt(value);
+            }
+        }
+    }
+
+    static int[][] readIntRows(ByteBuffer in) {
+        int[] offsets = readInts(in);
+        int length = readLength(in, 4);
+        if (offsets.length == 0 || offsets[0] != 0 || offsets[offsets.length - 1] != length)
+            throw new IllegalArgumentException("Bad row offsets");
+        for (int i = 1; i < offsets.length; i++) {
+            if (offsets[i] < offsets[i - 1])
+                throw new IllegalArgumentException("Bad row offsets");
+        }
+        IntBuffer values = in.asIntBuffer();
+        int[][] rows = new int[offsets.length - 1][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new int[offsets[i + 1] - offsets[i]];
+            values.get(rows[i]);
+        }
+        in.position(in.position() + 4 * length);
+        return rows;
+    }
+
+    static void writeBooleans(DataOutputStream out, boolean[] values) throws IOException {
+        out.writeInt(values.length);
+        for (boolean value : values) {
+            out.writeBoolean(value);
+        }
+    }
+
+    static boolean[] readBooleans(ByteBuffer in) {
+        boolean[] values = new boolean[readLength(in, 1)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.get() != 0;
+        }
+        return values;
+    }
+
+    static void writeStrings(DataOutputStream out, Iterable<String> strings, int size)
+            throws IOException {
+        out.writeInt(size);
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String[] readStrings(ByteBuffer in) {
+        // each string takes at least its 4-byte length
+        String[] strings = new String[readLength(in, 4)];
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < strings.length; i++) {
+            int length = readLength(in, 1);
+            if (length > bytes.length)
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+            in.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    static void writeIndex(DataOutputStream out, Index<String> index) throws IOException {
+        writeStrings(out, index, index.size());
+    }
+
+    static Index<String> readIndex(ByteBuffer in) {
+        return new Index<String>(Arrays.asList(readStrings(in)));
+    }
+}
@@ -1,24 +1,791 @@
 package cs224n.assignment;
 
 import cs224n.ling.Tree;
+import cs224n.util.Index;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * The CKY PCFG Parser you will implement.
+ *
+ * The parser reads the CompiledGrammar form of its grammar, so symbols
+ * are contiguous integers and the chart is a set of flat arrays indexed
+ * by (start, end, symbol); the inner loops never hash a String.
+ * With more than one thread, the cells of each span length are filled
+ * in parallel; the result is identical to the sequential parse.
+ * After training the grammar and lexicon are read-only, and each thread
+ * parses into its own chart, so whole sentences can also be parsed
+ * concurrently through parseAll().
+ *
+ * Each cell can optionally be pruned to a beam once it is complete:
+ * only its beamSize best symbols are kept, and/or only those within
+ * beamMargin (in log probability) of its best symbol.  The cell
+ * covering the whole sentence is never pruned.
+ *
+ * With a coarse-to-fine threshold, a CoarseToFinePruner first runs
+ * inside-outside over a projected grammar, and the fine chart only
+ * builds symbols whose coarse projection has at least that posterior
+ * over the span.  A tag dictionary can likewise restrict the tags
+ * each word's preterminal cell is seeded with.
+ *
+ * getKBestParses() reads the k best derivations lazily off the chart's
+ * hypergraph (see KBestExtractor) instead of reparsing.
+ *
+ * A trained parser can be saved to a binary model file and loaded in
+ * place of training; see save() and load().
  */
-public class PCFGParser implements Parser {
+public class PCFGParser implements BatchParser, StreamingParser {
+    private static final String ROOT = "ROOT";
+
+    /* Entries (cells times symbols) of the largest chart a thread keeps
+     * for reuse, about 72MB over the chart's arrays. */
+    static final int MAX_RETAINED_CHART_SIZE = 1 << 21;
+
+    /* Split points (cells times span length) a diagonal task fills on
+     * its own rather than forking; smaller diagonals are not forked. */
+    static final int TASK_WORK = 256;
+
     private Grammar grammar;
     private Lexicon lexicon;
 
+    private CompiledGrammar compiledGrammar;
+    private int rootSymbol;
+    private int[] tagIds;
+    private int[] tagIdSymbols;
+
+    private ForkJoinPool pool;
+    // TASK_WORK, lowered by the tests to fork on short sentences
+    int taskWork = TASK_WORK;
+    private final ThreadLocal<Chart> charts = new ThreadLocal<Chart>();
+
+    private int beamSize = 0;
+    private double beamMargin = 0.0;
+    private final AtomicLong edgesBuilt = new AtomicLong();
+    private final AtomicLong edgesPruned = new AtomicLong();
+    private final AtomicLong reparses = new AtomicLong();
+    private final AtomicLong edgesDiscarded = new AtomicLong();
+
+    private double coarseToFineThreshold = 0.0;
+    private CoarseToFinePruner pruner;
+
+    private int tagDictionarySize = 0;
+    private int trainThreads = 1;
+
+    /* Sets how many threads fill each span diagonal of the chart.
+     * One (the default) parses sequentially on the calling thread. */
+    public void setNumThreads(int numThreads) {
+        if (pool != null)
+            pool.shutdown();
+        pool = (numThreads > 1 ? new ForkJoinPool(numThreads) : null);
+    }
+
+    /* Sets how many threads tally the training trees in train(). */
+    public void setTrainThreads(int trainThreads) {
+        this.trainThreads = trainThreads;
+    }
+
+    /* Keeps at most this many symbols per chart cell; zero disables. */
+    public void setBeamSize(int beamSize) {
+        this.beamSize = beamSize;
+    }
+
+    /* Drops cell entries more than this many nats below the cell's best
+     * entry; zero disables. */
+    public void setBeamMargin(double beamMargin) {
+        this.beamMargin = beamMargin;
+    }
+
+    /* Enables coarse-to-fine pruning at the given posterior threshold;
+     * zero disables.  The coarse grammar is only estimated if this is
+     * enabled before training. */
+    public void setCoarseToFineThreshold(double threshold) {
+        this.coarseToFineThreshold = threshold;
+    }
+
+    /* Seeds preterminal cells only with the tags seen with each word in
+     * training, plus, for rare and unknown words, this many open-class
+     * tags (see Lexicon.getTagDictionary); zero disables.  A sentence
+     * left without a parse is parsed again unrestricted (see
+     * getReparses()).  On miniTest this saves at most 6% of edges. */
+    public void setTagDictionary(int numOpenClassTags) {
+        this.tagDictionarySize = numOpenClassTags;
+    }
+
+    /* Chart entries (symbols over a span, after unaries) given a score
+     * since the last call to resetStatistics(), counting only the final
+     * chart of each sentence. */
+    public long getEdgesBuilt() {
+        return edgesBuilt.get();
+    }
+
+    /* Chart entries removed by beam pruning since the last call to
+     * resetStatistics(). */
+    public long getEdgesPruned() {
+        return edgesPruned.get();
+    }
+
+    /* Sentences parsed a second time, unpruned, because coarse-to-fine
+     * pruning or the tag dictionary left no parse, since the last call
+     * to resetStatistics(). */
+    public long getReparses() {
+        return reparses.get();
+    }
+
+    /* Chart entries built by the passes those reparses threw away. */
+    public long getEdgesDiscarded() {
+        return edgesDiscarded.get();
+    }
+
+    public void resetStatistics() {
+        edgesBuilt.set(0);
+        edgesPruned.set(0);
+        reparses.set(0);
+        edgesDiscarded.set(0);
+    }
+
     public void train(List<Tree<String>> trainTrees) {
-        // TODO: before you generate your grammar, the training trees
-        // need to be binarized so that rules are at most binary
-        lexicon = new Lexicon(trainTrees);
-        grammar = new Grammar(trainTrees);
+        List<Tree<String>> annotatedTrees = new ArrayList<Tree<String>>();
+        for (Tree<String> trainTree : trainTrees) {
+            annotatedTrees.add(TreeAnnotations.annotateTree(trainTree));
+        }
+        lexicon = new Lexicon(annotatedTrees, trainThreads);
+        grammar = new Grammar(annotatedTrees, trainThreads);
+        compiledGrammar = grammar.compile();
+        indexTags();
+        pruner = null;
+        if (coarseToFineThreshold > 0.0) {
+            pruner = new CoarseToFinePruner(annotatedTrees, compiledGrammar.getSymbols());
+        }
+    }
+
+    /* Trains as train(List) does, annotating and counting one tree at a
+     * time, so memory grows with the grammar and vocabulary rather than
+     * with the treebank.  The pass is sequential whatever the number of
+     * training threads. */
+    public void train(Iterator<Tree<String>> trainTrees) {
+        Grammar.Tally rules = new Grammar.Tally();
+        Lexicon.Tally taggings = new Lexicon.Tally();
+        CoarseToFinePruner.Tally coarseCounts =
+            (coarseToFineThreshold > 0.0 ? new CoarseToFinePruner.Tally() : null);
+        while (trainTrees.hasNext()) {
+            Tree<String> annotatedTree = TreeAnnotations.annotateTree(trainTrees.next());
+            rules.addTree(annotatedTree);
+            taggings.addTree(annotatedTree);
+            if (coarseCounts != null)
+                coarseCounts.addTree(annotatedTree);
+        }
+        lexicon = new Lexicon(taggings);
+        grammar = new Grammar(rules);
+        compiledGrammar = grammar.compile();
+        indexTags();
+        pruner = null;
+        if (coarseCounts != null) {
+            pruner = new CoarseToFinePruner(coarseCounts, compiledGrammar.getSymbols());
+        }
+    }
+
+    /* Writes the trained model: the compiled grammar's symbols and rule
+     * tables, the lexicon's score tables and, if it was trained, the
+     * coarse-to-fine pruner (see ModelFile for the layout).  The file is
+     * written beside the target and moved over it, so a reader never sees
+     * a partial model. */
+    public void save(Path path) {
+        if (compiledGrammar == null)
+            throw new RuntimeException("Cannot save an untrained parser");
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tempPath), 1 << 16));
+            try {
+                out.writeInt(ModelFile.MAGIC);
+                out.writeInt(ModelFile.VERSION);
+                compiledGrammar.write(out);
+                lexicon.write(out);
+                out.writeBoolean(pruner != null);
+                if (pruner != null)
+                    pruner.write(out);
+            } finally {
+                out.close();
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // only left behind if writing or moving it failed
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                // the failure being reported matters more
+            }
+        }
+    }
+
+    /* Replaces the trained model with one written by save(), in place of
+     * train().  The file's tables are decoded straight into heap arrays
+     * (see ModelFile), so nothing is re-estimated.  A truncated or
+     * corrupt file throws a RuntimeException and leaves the parser as it
+     * was.  Parsing settings (threads, beams,
+     * threshold, tag dictionary) are not part of the model; coarse-to-fine
+     * pruning needs a model saved with its pruner. */
+    public void load(Path path) {
+        ByteBuffer in;
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (in.remaining() < 8 || in.getInt() != ModelFile.MAGIC)
+            throw new RuntimeException("Not a parser model: " + path);
+        int version = in.getInt();
+        if (version != ModelFile.VERSION)
+            throw new RuntimeException("Unsupported model version " + version + ": " + path);
+        CompiledGrammar loadedGrammar;
+        Lexicon loadedLexicon;
+        CoarseToFinePruner loadedPruner;
+        try {
+            loadedGrammar = CompiledGrammar.read(in);
+            loadedLexicon = Lexicon.read(in);
+            loadedPruner = (in.get() != 0 ? CoarseToFinePruner.read(in) : null);
+        } catch (BufferUnderflowException e) {
+            throw new RuntimeException("Truncated parser model: " + path, e);
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Corrupt parser model: " + path, e);
+        }
+        grammar = null;
+        compiledGrammar = loadedGrammar;
+        lexicon = loadedLexicon;
+        pruner = loadedPruner;
+        indexTags();
     }
 
     public Tree<String> getBestParse(List<String> sentence) {
-        // TODO: implement this method
-        return null;
+        Chart chart = parse(sentence);
+        if (chart == null) {
+            return buildFlatParse(sentence);
+        }
+        Tree<String> annotatedTree = buildUnaryTree(chart, sentence, 0, sentence.size(), rootSymbol);
+        return TreeAnnotations.unAnnotateTree(annotatedTree);
+    }
+
+    /* Log probability of the best annotated derivation of the sentence
+     * under the trained model, or negative infinity if there is none. */
+    double getBestScore(List<String> sentence) {
+        Chart chart = parse(sentence);
+        if (chart == null)
+            return Double.NEGATIVE_INFINITY;
+        return chart.unaryScore[chart.index(0, sentence.size(), rootSymbol)];
+    }
+
+    /* Returns up to k parses, best first, extracted lazily from the same
+     * chart getBestParse() uses.  These are the k best annotated
+     * derivations, so two of them may unannotate to the same tree.  A
+     * sentence the grammar cannot cover gets only the flat fallback. */
+    public List<Tree<String>> getKBestParses(List<String> sentence, int k) {
+        Chart chart = parse(sentence);
+        if (chart == null) {
+            return Collections.singletonList(buildFlatParse(sentence));
+        }
+        KBestExtractor extractor = new KBestExtractor(compiledGrammar, chart, sentence);
+        List<Tree<String>> parses = new ArrayList<Tree<String>>(k);
+        for (int rank = 0; rank < k; rank++) {
+            Tree<String> annotatedTree = extractor.getTree(rootSymbol, rank);
+            if (annotatedTree == null)
+                break;
+            parses.add(TreeAnnotations.unAnnotateTree(annotatedTree));
+        }
+        return parses;
+    }
+
+    /* Log probabilities of the derivations getKBestParses() returns, in
+     * the same order; empty if the sentence has no parse. */
+    double[] getKBestScores(List<String> sentence, int k) {
+        Chart chart = parse(sentence);
+        if (chart == null)
+            return new double[0];
+        KBestExtractor extractor = new KBestExtractor(compiledGrammar, chart, sentence);
+        double[] scores = new double[k];
+        int rank = 0;
+        for (; rank < k; rank++) {
+            scores[rank] = extractor.getScore(rootSymbol, rank);
+            if (scores[rank] == Double.NEGATIVE_INFINITY)
+                break;
+        }
+        return Arrays.copyOf(scores, rank);
+    }
+
+    /* Fills a chart for the sentence and returns it, or null if there is
+     * no parse at all.  Each thread reuses one chart, unless the sentence
+     * needs more than MAX_RETAINED_CHART_SIZE entries: such a chart is
+     * made for the sentence alone, so one long sentence does not pin a
+     * huge chart to the thread. */
+    private Chart parse(List<String> sentence) {
+        if (sentence.isEmpty() || rootSymbol < 0)
+            return null;
+        int numSymbols = compiledGrammar.numSymbols();
+        Chart chart = charts.get();
+        if (Chart.size(sentence.size(), numSymbols) > MAX_RETAINED_CHART_SIZE) {
+            chart = new Chart(numSymbols);
+        } else if (chart == null || chart.numSymbols != numSymbols) {
+            // a chart left from before train() or load() has the wrong stride
+            chart = new Chart(numSymbols);
+            charts.set(chart);
+        }
+        chart.clear(sentence.size());
+        if (pruner != null && coarseToFineThreshold > 0.0) {
+            chart.masks = pruner.prune(sentence, coarseToFineThreshold);
+            chart.coarseOf = pruner.getProjection();
+        }
+        chart.restrictTags = (tagDictionarySize > 0);
+        fillChart(chart, sentence);
+        int top = chart.index(0, sentence.size(), rootSymbol);
+        if ((chart.masks != null || chart.restrictTags)
+            && chart.unaryScore[top] == Double.NEGATIVE_INFINITY) {
+            // pruning removed every parse; parse unpruned, and count the
+            // discarded pass apart from the edges of final charts
+            reparses.incrementAndGet();
+            edgesDiscarded.addAndGet(chart.edgesBuilt.get());
+            chart.clear(sentence.size());
+            fillChart(chart, sentence);
+        }
+        edgesBuilt.addAndGet(chart.edgesBuilt.get());
+        edgesPruned.addAndGet(chart.edgesPruned.get());
+        if (chart.unaryScore[top] == Double.NEGATIVE_INFINITY) {
+            return null;
+        }
+        return chart;
+    }
+
+    public List<Tree<String>> parseAll(List<List<String>> sentences, int numThreads) {
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            List<Future<Tree<String>>> futures = new ArrayList<Future<Tree<String>>>();
+            for (final List<String> sentence : sentences) {
+                futures.add(workers.submit(new Callable<Tree<String>>() {
+                    public Tree<String> call() {
+                        return getBestParse(sentence);
+                    }
+                }));
+            }
+            List<Tree<String>> parses = new ArrayList<Tree<String>>(sentences.size());
+            for (Future<Tree<String>> future : futures) {
+                parses.add(future.get());
+            }
+            return parses;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /* Lines lexicon tags up with grammar symbols.  Tags which no rule
+     * mentions can never be part of a parse, so they are left out. */
+    private void indexTags() {
+        Index<String> symbols = compiledGrammar.getSymbols();
+        rootSymbol = symbols.indexOf(ROOT);
+        Index<String> lexiconTags = lexicon.getTagIndex();
+        tagIdSymbols = new int[lexiconTags.size()];
+        int numKnownTags = 0;
+        for (int tagId = 0; tagId < lexiconTags.size(); tagId++) {
+            tagIdSymbols[tagId] = symbols.indexOf(lexiconTags.get(tagId));
+            if (tagIdSymbols[tagId] >= 0)
+                numKnownTags++;
+        }
+        tagIds = new int[numKnownTags];
+        for (int tagId = 0, i = 0; tagId < lexiconTags.size(); tagId++) {
+            if (tagIdSymbols[tagId] >= 0)
+                tagIds[i++] = tagId;
+        }
+    }
+
+    private void fillChart(Chart chart, List<String> sentence) {
+        int numWords = sentence.size();
+        for (int span = 1; span <= numWords; span++) {
+            int numCells = numWords - span + 1;
+            if (pool != null && numCells * span > taskWork) {
+                pool.invoke(new DiagonalTask(chart, sentence, span, 0, numCells));
+            } else {
+                fillSpans(chart, sentence, span, 0, numCells, chart.beamHeap(beamSize));
+            }
+        }
+    }
+
+    /* Fills the cells of one span length whose start lies in [low, high).
+     * Cells only read from strictly shorter spans and only write their
+     * own entries, so all cells of one span length can be filled
+     * concurrently.  The edge counts are added once per call, and
+     * beamHeap (beamSize long) is scratch for pruning the cells. */
+    private void fillSpans(Chart chart, List<String> sentence, int span, int low, int high,
+                           double[] beamHeap) {
+        boolean prune = (beamSize > 0 || beamMargin > 0.0) && span < chart.numWords;
+        long built = 0;
+        long pruned = 0;
+        for (int start = low; start < high; start++) {
+            int end = start + span;
+            if (span == 1)
+                fillLexicalCell(chart, sentence.get(start), start);
+            else
+                fillCell(chart, start, end);
+            int cell = chart.cell(start, end);
+            int numEntries = countEntries(chart, cell);
+            built += numEntries;
+            if (prune)
+                pruned += pruneCell(chart, cell, numEntries, beamHeap);
+        }
+        chart.edgesBuilt.addAndGet(built);
+        if (pruned > 0)
+            chart.edgesPruned.addAndGet(pruned);
+    }
+
+    private int countEntries(Chart chart, int cell) {
+        double[] unaryScore = chart.unaryScore;
+        int count = 0;
+        for (int entry = cell, last = cell + chart.numSymbols; entry < last; entry++) {
+            if (unaryScore[entry] != Double.NEGATIVE_INFINITY)
+                count++;
+        }
+        return count;
+    }
+
+    /* Removes the unary-layer entries of a cell which fall outside the
+     * beam, and returns how many were removed.  The beamSize best scores
+     * are tracked in a small min-heap, the caller's heap array; ties
+     * with the last one are kept. */
+    private int pruneCell(Chart chart, int cell, int numEntries, double[] heap) {
+        double[] unaryScore = chart.unaryScore;
+        int last = cell + chart.numSymbols;
+        double threshold = Double.NEGATIVE_INFINITY;
+        if (beamSize > 0 && numEntries > beamSize) {
+            int heapSize = 0;
+            for (int entry = cell; entry < last; entry++) {
+                double score = unaryScore[entry];
+                if (score == Double.NEGATIVE_INFINITY)
+                    continue;
+                if (heapSize < beamSize) {
+                    siftUp(heap, heapSize++, score);
+                } else if (score > heap[0]) {
+                    siftDown(heap, heapSize, score);
+                }
+            }
+            threshold = heap[0];
+        }
+        if (beamMargin > 0.0) {
+            double best = Double.NEGATIVE_INFINITY;
+            for (int entry = cell; entry < last; entry++) {
+                best = Math.max(best, unaryScore[entry]);
+            }
+            threshold = Math.max(threshold, best - beamMargin);
+        }
+        int pruned = 0;
+        for (int entry = cell; entry < last; entry++) {
+            double score = unaryScore[entry];
+            if (score != Double.NEGATIVE_INFINITY && score < threshold) {
+                unaryScore[entry] = Double.NEGATIVE_INFINITY;
+                pruned++;
+            }
+        }
+        return pruned;
+    }
+
+    private static void siftUp(double[] heap, int position, double value) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (heap[parent] <= value)
+                break;
+            heap[position] = heap[parent];
+            position = parent;
+        }
+        heap[position] = value;
+    }
+
+    /* Replaces the minimum of a full min-heap with a larger value. */
+    private static void siftDown(double[] heap, int size, double value) {
+        int position = 0;
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && heap[child + 1] < heap[child])
+                child++;
+            if (heap[child] >= value)
+                break;
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = value;
+    }
+
+    private void fillLexicalCell(Chart chart, String word, int start) {
+        int cell = chart.cell(start, start + 1);
+        boolean[] allowed = (chart.masks == null ? null : chart.masks.base);
+        int coarseCell = (allowed == null ? 0 : chart.masks.cell(start, start + 1));
+        double[] logScores = lexicon.getLogScores(word);
+        int[] candidates = (chart.restrictTags
+                            ? lexicon.getTagDictionary(word, tagDictionarySize) : tagIds);
+        for (int tagId : candidates) {
+            int symbol = tagIdSymbols[tagId];
+            if (symbol < 0 || !isKept(allowed, coarseCell, chart.coarseOf, symbol))
+                continue;
+            int entry = cell + symbol;
+            chart.score[entry] = logScores[tagId];
+            chart.backSplit[entry] = Chart.LEXICAL;
+        }
+        applyUnaries(chart, start, start + 1);
+    }
+
+    /* Binary rules read their children from the unary layer of the
+     * smaller cells and write into the binary layer of this one. */
+    private void fillCell(Chart chart, int start, int end) {
+        int numSymbols = chart.numSymbols;
+        double[] score = chart.score;
+        double[] unaryScore = chart.unaryScore;
+        int cell = chart.cell(start, end);
+        boolean[] allowed = (chart.masks == null ? null : chart.masks.base);
+        int coarseCell = (allowed == null ? 0 : chart.masks.cell(start, end));
+        int[] coarseOf = chart.coarseOf;
+        CompiledGrammar.BinaryRuleTable rules = compiledGrammar.binaryByLeft;
+        int[] rightChildren = rules.right;
+        int[] parents = rules.parent;
+        double[] ruleScores = rules.logScore;
+        for (int split = start + 1; split < end; split++) {
+            int leftCell = chart.cell(start, split);
+            int rightCell = chart.cell(split, end);
+            for (int left = 0; left < numSymbols; left++) {
+                double leftScore = unaryScore[leftCell + left];
+                if (leftScore == Double.NEGATIVE_INFINITY)
+                    continue;
+                for (int r = rules.start(left), last = rules.end(left); r < last; r++) {
+                    int right = rightChildren[r];
+                    double rightScore = unaryScore[rightCell + right];
+                    if (rightScore == Double.NEGATIVE_INFINITY)
+                        continue;
+                    double total = leftScore + rightScore + ruleScores[r];
+                    int parent = parents[r];
+                    int entry = cell + parent;
+                    if (total > score[entry] && isKept(allowed, coarseCell, coarseOf, parent)) {
+                        score[entry] = total;
+                        chart.backSplit[entry] = split;
+                        chart.backLeft[entry] = left;
+                        chart.backRight[entry] = right;
+                    }
+                }
+            }
+        }
+        applyUnaries(chart, start, end);
+    }
+
+    /* Whether a coarse mask layer lets a symbol into a cell; no mask, or
+     * a symbol without a coarse projection, is never pruned. */
+    private static boolean isKept(boolean[] allowed, int coarseCell, int[] coarseOf, int symbol) {
+        if (allowed == null)
+            return true;
+        int coarse = coarseOf[symbol];
+        return coarse < 0 || allowed[coarseCell + coarse];
+    }
+
+    /* Fills the unary layer of a cell from its binary layer in one pass
+     * over the precomputed unary closure, which includes the reflexive
+     * chain for every symbol. */
+    private void applyUnaries(Chart chart, int start, int end) {
+        int cell = chart.cell(start, end);
+        boolean[] allowed = (chart.masks == null ? null : chart.masks.unary);
+        int coarseCell = (allowed == null ? 0 : chart.masks.cell(start, end));
+        int[] coarseOf = chart.coarseOf;
+        int numSymbols = chart.numSymbols;
+        double[] score = chart.score;
+        double[] unaryScore = chart.unaryScore;
+        CompiledGrammar.UnaryClosure closure = compiledGrammar.unaryClosureByChild;
+        int[] parents = closure.parent;
+        double[] chainScores = closure.logScore;
+        for (int child = 0; child < numSymbols; child++) {
+            double childScore = score[cell + child];
+            if (childScore == Double.NEGATIVE_INFINITY)
+                continue;
+            for (int r = closure.start(child), last = closure.end(child); r < last; r++) {
+                double total = childScore + chainScores[r];
+                int parent = parents[r];
+                int entry = cell + parent;
+                if (total > unaryScore[entry] && isKept(allowed, coarseCell, coarseOf, parent)) {
+                    unaryScore[entry] = total;
+                    chart.unaryBack[entry] = r;
+                }
+            }
+        }
+    }
+
+    private Tree<String> buildUnaryTree(Chart chart, List<String> sentence,
+                                        int start, int end, int symbol) {
+        CompiledGrammar.UnaryClosure closure = compiledGrammar.unaryClosureByChild;
+        int chain = chart.unaryBack[chart.index(start, end, symbol)];
+        Tree<String> tree = buildTree(chart, sentence, start, end, closure.child[chain]);
+        if (closure.child[chain] == symbol)
+            return tree;
+        Index<String> symbols = compiledGrammar.getSymbols();
+        int[] path = closure.getPath(chain);
+        for (int i = path.length - 1; i >= 0; i--) {
+            tree = new Tree<String>(symbols.get(path[i]), Collections.singletonList(tree));
+        }
+        return new Tree<String>(symbols.get(symbol), Collections.singletonList(tree));
+    }
+
+    private Tree<String> buildTree(Chart chart, List<String> sentence,
+                                   int start, int end, int symbol) {
+        int entry = chart.index(start, end, symbol);
+        String label = compiledGrammar.getSymbols().get(symbol);
+        int split = chart.backSplit[entry];
+        if (split == Chart.LEXICAL) {
+            Tree<String> leaf = new Tree<String>(sentence.get(start));
+            return new Tree<String>(label, Collections.singletonList(leaf));
+        }
+        List<Tree<String>> children = new ArrayList<Tree<String>>(2);
+        children.add(buildUnaryTree(chart, sentence, start, split, chart.backLeft[entry]));
+        children.add(buildUnaryTree(chart, sentence, split, end, chart.backRight[entry]));
+        return new Tree<String>(label, children);
+    }
+
+    /* Fallback for sentences the grammar cannot cover: a flat ROOT
+     * over the best individual tag for each word. */
+    private Tree<String> buildFlatParse(List<String> sentence) {
+        List<Tree<String>> children = new ArrayList<Tree<String>>();
+        for (String word : sentence) {
+            String bestTag = lexicon.getBestTag(word);
+            children.add(new Tree<String>(bestTag,
+                    Collections.singletonList(new Tree<String>(word))));
+        }
+        return new Tree<String>(ROOT, children);
+    }
+
+    // DiagonalTask ===========================================================
+
+    /* Fills the cells of one span length whose start lies in [low, high),
+     * splitting the range in half while it holds more than taskWork
+     * split points. */
+    private class DiagonalTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Chart chart;
+        final List<String> sentence;
+        final int span;
+        final int low;
+        final int high;
+
+        protected void compute() {
+            if (high - low == 1 || (high - low) * span <= taskWork) {
+                // leaves run concurrently on one chart, so each has its own heap
+                fillSpans(chart, sentence, span, low, high,
+                          (beamSize > 0 ? new double[beamSize] : null));
+                return;
+            }
+            int middle = (low + high) >>> 1;
+            invokeAll(new DiagonalTask(chart, sentence, span, low, middle),
+                      new DiagonalTask(chart, sentence, span, middle, high));
+        }
+
+        DiagonalTask(Chart chart, List<String> sentence, int span, int low, int high) {
+            this.chart = chart;
+            this.sentence = sentence;
+            this.span = span;
+            this.low = low;
+            this.high = high;
+        }
+    }
+
+    // Chart ==================================================================
+
+    /* CKY chart with two layers: score holds the best lexical or binary
+     * derivation of each entry, and unaryScore the best after one unary
+     * chain on top of it.  Only the n(n+1)/2 cells with start < end are
+     * stored, row by row: cell (start, end) is number
+     * start * (2n - start + 1) / 2 + (end - start - 1), and entry
+     * (start, end, symbol) lives at cell * numSymbols + symbol in every
+     * array.  Charts are reused across sentences and only grow. */
+    static class Chart {
+        static final int LEXICAL = -1;
+
+        final int numSymbols;
+        int numWords;
+        double[] score = new double[0];
+        int[] backSplit = new int[0];
+        int[] backLeft = new int[0];
+        int[] backRight = new int[0];
+        double[] unaryScore = new double[0];
+        int[] unaryBack = new int[0];
+        double[] beamHeap = new double[0];
+        CoarseToFinePruner.Masks masks;
+        int[] coarseOf;
+        boolean restrictTags;
+        // edges of the current pass, added to once per filled range
+        final AtomicLong edgesBuilt = new AtomicLong();
+        final AtomicLong edgesPruned = new AtomicLong();
+
+        int cell(int start, int end) {
+            return (start * (2 * numWords - start + 1) / 2 + end - start - 1) * numSymbols;
+        }
+
+        int index(int start, int end, int symbol) {
+            return cell(start, end) + symbol;
+        }
+
+        /* Prepares the chart for a sentence of the given length. */
+        void clear(int numWords) {
+            this.numWords = numWords;
+            this.masks = null;
+            this.restrictTags = false;
+            edgesBuilt.set(0);
+            edgesPruned.set(0);
+            int size = (int) size(numWords, numSymbols);
+            if (size > score.length) {
+                score = new double[size];
+                backSplit = new int[size];
+                backLeft = new int[size];
+                backRight = new int[size];
+                unaryScore = new double[size];
+                unaryBack = new int[size];
+            }
+            Arrays.fill(score, 0, size, Double.NEGATIVE_INFINITY);
+            Arrays.fill(unaryScore, 0, size, Double.NEGATIVE_INFINITY);
+        }
+
+        /* Scratch space for the beam of a cell filled on the chart's own
+         * thread, grown to hold beamSize scores. */
+        double[] beamHeap(int beamSize) {
+            if (beamHeap.length < beamSize)
+                beamHeap = new double[beamSize];
+            return beamHeap;
+        }
+
+        /* Entries in the chart of a sentence of numWords words. */
+        static long size(int numWords, int numSymbols) {
+            return (long) numWords * (numWords + 1) / 2 * numSymbols;
+        }
+
+        Chart(int numSymbols) {
+            this.numSymbols = numSymbols;
+        }
     }
 }
@@ -2,11 +2,21 @@ package cs224n.assignment;
 
 import cs224n.evaluator.EnglishPennTreebankParseEvaluator;
 import cs224n.io.PennTreebankReader;
+import cs224n.io.TreebankCache;
 import cs224n.ling.Tree;
 import cs224n.ling.Trees;
 import cs224n.util.*;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Harness for PCFG Parser project.
@@ -18,36 +28,130 @@ public class PCFGParserTester {
 	// Longest sentence length that will be tested on.
 	private static int MAX_LENGTH = 20;
 
+	// Number of sentences parsed concurrently by a BatchParser.
+	private static int BATCH_THREADS = 1;
+
+	// Whether each guessed and gold tree is printed with its scores, or
+	// only the totals.
+	private static boolean PRINT_SENTENCES = true;
+
+	// Number of treebank files read and normalized concurrently.
+	private static int LOAD_THREADS = 1;
+
+	// Directory of normalized treebank caches, or null to always read the
+	// .mrg files.
+	private static File TREE_CACHE = null;
+
 	private static void testParser(Parser parser, List<Tree<String>> testTrees) {
 		EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval = 
 				new EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>
 		(Collections.singleton("ROOT"), 
 				new HashSet<String>(Arrays.asList(new String[] {"''", "``", ".", ":", ","})));
+		List<Tree<String>> goldTrees = new ArrayList<Tree<String>>();
+		List<List<String>> testSentences = new ArrayList<List<String>>();
 		for (Tree<String> testTree : testTrees) {
 			List<String> testSentence = testTree.getYield();
 			if (testSentence.size() > MAX_LENGTH)
 				continue;
-			Tree<String> guessedTree = parser.getBestParse(testSentence);
-			System.out.println("Guess:\n"+Trees.PennTreeRenderer.render(guessedTree));
-			System.out.println("Gold:\n"+Trees.PennTreeRenderer.render(testTree));
-			eval.evaluate(guessedTree, testTree);
+			goldTrees.add(testTree);
+			testSentences.add(testSentence);
+		}
+		long startTime = System.nanoTime();
+		List<Tree<String>> guessedTrees;
+		if (BATCH_THREADS > 1 && parser instanceof BatchParser) {
+			guessedTrees = ((BatchParser) parser).parseAll(testSentences, BATCH_THREADS);
+		} else {
+			guessedTrees = new ArrayList<Tree<String>>();
+			for (List<String> testSentence : testSentences) {
+				guessedTrees.add(parser.getBestParse(testSentence));
+			}
 		}
+		long parseNanos = System.nanoTime() - startTime;
+		eval.setPrintSentences(PRINT_SENTENCES);
+		evaluateAll(eval, guessedTrees, goldTrees);
 		eval.display(true);
+		displayTiming(goldTrees.size(), parseNanos);
+	}
+
+	/* Scores the parses on BATCH_THREADS threads (one by default) into
+	 * the shared eval.  Each sentence's report is rendered into its own
+	 * buffer, and the buffers are printed in sentence order, so the
+	 * output does not depend on the number of threads.  Without
+	 * PRINT_SENTENCES nothing is rendered and only the totals are kept. */
+	private static void evaluateAll(
+			final EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval,
+			final List<Tree<String>> guessedTrees, final List<Tree<String>> goldTrees) {
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, BATCH_THREADS));
+		try {
+			List<Future<String>> reports = new ArrayList<Future<String>>();
+			for (int i = 0; i < goldTrees.size(); i++) {
+				final Tree<String> guessedTree = guessedTrees.get(i);
+				final Tree<String> testTree = goldTrees.get(i);
+				reports.add(workers.submit(new Callable<String>() {
+					public String call() {
+						if (!PRINT_SENTENCES) {
+							eval.evaluate(guessedTree, testTree, null);
+							return "";
+						}
+						StringWriter report = new StringWriter();
+						PrintWriter pw = new PrintWriter(report);
+						pw.println("Guess:\n"+Trees.PennTreeRenderer.render(guessedTree));
+						pw.println("Gold:\n"+Trees.PennTreeRenderer.render(testTree));
+						eval.evaluate(guessedTree, testTree, pw);
+						pw.flush();
+						return report.toString();
+					}
+				}));
+			}
+			for (Future<String> report : reports) {
+				System.out.print(report.get());
+			}
+			System.out.flush();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	/* Runs the test set once per combination of beam settings, so that
+	 * accuracy and speed can be compared side by side. */
+	private static void testBeams(PCFGParser parser, List<Tree<String>> testTrees,
+			String[] beamSizes, String[] beamMargins) {
+		for (String beamSize : beamSizes) {
+			for (String beamMargin : beamMargins) {
+				parser.setBeamSize(Integer.parseInt(beamSize));
+				parser.setBeamMargin(Double.parseDouble(beamMargin));
+				parser.resetStatistics();
+				System.out.println("Beam size: " + beamSize + ", beam margin: " + beamMargin);
+				testParser(parser, testTrees);
+				System.out.printf("Edges built: %d, pruned: %d%n",
+						parser.getEdgesBuilt(), parser.getEdgesPruned());
+				if (parser.getReparses() > 0)
+					System.out.printf("Reparsed unpruned: %d sentences, %d edges discarded%n",
+							parser.getReparses(), parser.getEdgesDiscarded());
+			}
+		}
+	}
+
+	private static void displayTiming(int numParsed, long parseNanos) {
+		System.out.printf("Parsed %d sentences in %.2f s (%.2f ms/sentence)%n",
+				numParsed, parseNanos / 1e9,
+				(numParsed > 0 ? parseNanos / 1e6 / numParsed : 0.0));
 	}
 
+	/* Reads and normalizes the trees of a range of files, LOAD_THREADS
+	 * files at a time; the trees keep their file order.  With a cache
+	 * directory, a range is only read from the .mrg files once. */
 	private static List<Tree<String>> readTrees(String basePath, int low,
 			int high) {
-		Collection<Tree<String>> trees = PennTreebankReader.readTrees(basePath,
-				low, high);
-		// normalize trees
-		Trees.TreeTransformer<String> treeTransformer = new Trees.StandardTreeNormalizer();
-		List<Tree<String>> normalizedTreeList = new ArrayList<Tree<String>>();
-		for (Tree<String> tree : trees) {
-			Tree<String> normalizedTree = treeTransformer.transformTree(tree);
-			// System.out.println(Trees.PennTreeRenderer.render(normalizedTree));
-			normalizedTreeList.add(normalizedTree);
-		}
-		return normalizedTreeList;
+		if (TREE_CACHE != null)
+			return TreebankCache.readTrees(TREE_CACHE, basePath, low, high,
+					new Trees.StandardTreeNormalizer(), LOAD_THREADS);
+		return PennTreebankReader.readTrees(basePath, low, high,
+				new Trees.StandardTreeNormalizer(), LOAD_THREADS);
 	}
 
 	public static void main(String[] args) {
@@ -58,6 +162,18 @@ public class PCFGParserTester {
 		options.put("-data",      "miniTest");
 		options.put("-parser",    "cs224n.assignment.BaselineParser");
 		options.put("-maxLength", "20");
+		options.put("-parserThreads", "1");
+		options.put("-batchThreads", "1");
+		options.put("-printSentences", "true");
+		options.put("-trainThreads", "1");
+		options.put("-loadThreads", "1");
+		options.put("-treeCache", "");
+		options.put("-beamSize",  "0");
+		options.put("-beamMargin", "0");
+		options.put("-tagDictionary", "0");
+		options.put("-saveModel", "");
+		options.put("-loadModel", "");
+		options.put("-streamTrain", "false");
 
 		// let command-line options supersede defaults .........................
 		options.putAll(CommandLineUtils.simpleCommandLineParser(args));
@@ -68,6 +184,11 @@ public class PCFGParserTester {
 		System.out.println();
 
 		MAX_LENGTH = Integer.parseInt(options.get("-maxLength"));
+		BATCH_THREADS = Integer.parseInt(options.get("-batchThreads"));
+		PRINT_SENTENCES = Boolean.parseBoolean(options.get("-printSentences"));
+		LOAD_THREADS = Integer.parseInt(options.get("-loadThreads"));
+		if (options.get("-treeCache").length() > 0)
+			TREE_CACHE = new File(options.get("-treeCache"));
 
 		Parser parser;
 		try {
@@ -76,7 +197,21 @@ public class PCFGParserTester {
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
+		if (parser instanceof PCFGParser) {
+			((PCFGParser) parser).setNumThreads(Integer.parseInt(options.get("-parserThreads")));
+			((PCFGParser) parser).setTagDictionary(Integer.parseInt(options.get("-tagDictionary")));
+			((PCFGParser) parser).setTrainThreads(Integer.parseInt(options.get("-trainThreads")));
+		}
 		System.out.println("Using parser: " + parser);
+		// a saved model stands in for training, so the training trees are not read
+		boolean loadModel = options.get("-loadModel").length() > 0;
+		if (loadModel && !(parser instanceof PCFGParser))
+			throw new RuntimeException("Only a PCFGParser can load a model");
+		// a bare -streamTrain flag parses to null
+		boolean streamTrain = !loadModel && (options.get("-streamTrain") == null
+				|| Boolean.parseBoolean(options.get("-streamTrain")));
+		if (streamTrain && !(parser instanceof StreamingParser))
+			throw new RuntimeException("Only a StreamingParser can train from a stream");
 
 		String basePath = options.get("-path");
 		String dataSet = options.get("-data");
@@ -92,18 +227,27 @@ public class PCFGParserTester {
 		if (!basePath.endsWith("/"))
 			basePath += "/";
 		basePath += dataSet;
+		int trainLow, trainHigh;
 		if (dataSet.equals("miniTest")) {
-			System.out.print("Loading training trees...");
-			trainTrees = readTrees(basePath, 1, 3);
-			System.out.println("done.");
+			trainLow = 1;
+			trainHigh = 3;
+			if (!loadModel && !streamTrain) {
+				System.out.print("Loading training trees...");
+				trainTrees = readTrees(basePath, trainLow, trainHigh);
+				System.out.println("done.");
+			}
 			System.out.print("Loading test trees...");
 			testTrees = readTrees(basePath, 4, 4);
 			System.out.println("done.");
 		}
 		else if (dataSet.equals("treebank")) {
-			System.out.print("Loading training trees...");
-			trainTrees = readTrees(basePath, 200, 2199);
-			System.out.println("done.");
+			trainLow = 200;
+			trainHigh = 2199;
+			if (!loadModel && !streamTrain) {
+				System.out.print("Loading training trees...");
+				trainTrees = readTrees(basePath, trainLow, trainHigh);
+				System.out.println("done.");
+			}
 			System.out.print("Loading validation trees...");
 			validationTrees = readTrees(basePath, 2200, 2299);
 			System.out.println("done.");
@@ -114,7 +258,32 @@ public class PCFGParserTester {
 		else {
 			throw new RuntimeException("Bad data set mode: "+ dataSet+", use miniTest, or treebank."); 
 		}
-		parser.train(trainTrees);
-		testParser(parser, testTrees);
+		if (loadModel) {
+			System.out.print("Loading model...");
+			long startTime = System.nanoTime();
+			((PCFGParser) parser).load(Paths.get(options.get("-loadModel")));
+			System.out.printf("done (%.1f ms).%n", (System.nanoTime() - startTime) / 1e6);
+		} else if (streamTrain) {
+			// the training files are read as they are counted, never all at once
+			((StreamingParser) parser).train(PennTreebankReader.streamTrees(basePath, trainLow,
+					trainHigh, new Trees.StandardTreeNormalizer()));
+		} else {
+			parser.train(trainTrees);
+		}
+		if (options.get("-saveModel").length() > 0) {
+			if (!(parser instanceof PCFGParser))
+				throw new RuntimeException("Only a PCFGParser can save a model");
+			((PCFGParser) parser).save(Paths.get(options.get("-saveModel")));
+		}
+		if (parser instanceof PCFGParser) {
+			testBeams((PCFGParser) parser, testTrees,
+					options.get("-beamSize").split(","), options.get("-beamMargin").split(","));
+		} else if (parser instanceof AStarParser) {
+			testParser(parser, testTrees);
+			System.out.printf("Edges built: %d, popped: %d%n", ((AStarParser) parser).getEdgesBuilt(),
+					((AStarParser) parser).getEdgesPopped());
+		} else {
+			testParser(parser, testTrees);
+		}
 	}
 }
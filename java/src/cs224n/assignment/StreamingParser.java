@@ -0,0 +1,14 @@
+package cs224n.assignment;
+
+import java.util.Iterator;
+import cs224n.ling.Tree;
+
+/**
+ * Parsers which can train from trees read one at a time, so that the
+ * training treebank never has to be held in memory as a whole.
+ */
+public interface StreamingParser extends Parser {
+    /* Trains as train(List) would on the same trees, in one pass over
+     * the iterator, keeping only counts. */
+    public void train(Iterator<Tree<String>> trainTrees);
+}
@@ -62,6 +62,33 @@ public class TreeAnnotations {
 		return new Tree<String>(intermediateLabel, children);
 	} 
 
+	/* Projects an annotated label onto the coarse symbol set used for
+	 * coarse-to-fine parsing: parent annotation after a ^ is dropped, as
+	 * MarkovizationAnnotationStripper does, and an intermediate label
+	 * @X->... keeps only its base symbol @X. */
+	public static String projectLabel(String label) {
+		int cutIndex = label.indexOf('^');
+		if (label.startsWith("@")) {
+			int arrowIndex = label.indexOf("->");
+			if (arrowIndex > 0 && (cutIndex < 0 || arrowIndex < cutIndex))
+				cutIndex = arrowIndex;
+		}
+		if (cutIndex > 0)
+			return label.substring(0, cutIndex);
+		return label;
+	}
+
+	/* Applies projectLabel() to every non-leaf node of an annotated tree. */
+	public static Tree<String> projectTree(Tree<String> annotatedTree) {
+		if (annotatedTree.isLeaf())
+			return new Tree<String>(annotatedTree.getLabel());
+		List<Tree<String>> children = new ArrayList<Tree<String>>();
+		for (Tree<String> child : annotatedTree.getChildren()) {
+			children.add(projectTree(child));
+		}
+		return new Tree<String>(projectLabel(annotatedTree.getLabel()), children);
+	}
+
 	public static Tree<String> unAnnotateTree(Tree<String> annotatedTree) {
 
 		// Remove intermediate nodes (labels beginning with "@"
@@ -4,6 +4,10 @@ import cs224n.ling.Tree;
 import cs224n.ling.Trees;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.io.PrintWriter;
 import java.io.StringReader;
 
@@ -14,6 +18,13 @@ import java.io.StringReader;
  * properly (approximate hack), and other normalizations (like AVDP ~
  * PRT) are NOT done.
  *
+ * The totals of an Eval are LongAdders, so several threads may call
+ * evaluate() on one Eval at once without a lock; or each thread may
+ * keep its own Eval, and the results can be merge()d afterwards.  Each
+ * sentence's line goes to the PrintWriter passed to evaluate(), or
+ * nowhere if it is null.  A thread can thus collect its lines in a
+ * buffer and print them later in order.
+ *
  * @author Dan Klein
  */
 public class EnglishPennTreebankParseEvaluator<L> {
@@ -21,17 +32,25 @@ public class EnglishPennTreebankParseEvaluator<L> {
 
     protected String str = "";
 
-    private int exact = 0;
-    private int total = 0;
+    private final LongAdder exact = new LongAdder();
+    private final LongAdder total = new LongAdder();
+
+    private final LongAdder correctEvents = new LongAdder();
+    private final LongAdder guessedEvents = new LongAdder();
+    private final LongAdder goldEvents = new LongAdder();
 
-    private int correctEvents = 0;
-    private int guessedEvents = 0;
-    private int goldEvents = 0;
+    private boolean printSentences = true;
 
     abstract Set<Object> makeObjects(Tree<L> tree);
 
+    /* Whether evaluate(guess, gold) prints each sentence's line to
+     * System.out; on by default. */
+    public void setPrintSentences(boolean printSentences) {
+      this.printSentences = printSentences;
+    }
+
     public void evaluate(Tree<L> guess, Tree<L> gold) {
-      evaluate(guess, gold, new PrintWriter(System.out, true));
+      evaluate(guess, gold, (printSentences ? new PrintWriter(System.out, true) : null));
     }
 
     /* evaluates precision and recall by calling makeObjects() to make a
@@ -43,31 +62,45 @@ public class EnglishPennTreebankParseEvaluator<L> {
       Set<Object> correctSet = new HashSet<Object>();
       correctSet.addAll(goldSet);
       correctSet.retainAll(guessedSet);
+      addCounts(correctSet.size(), guessedSet.size(), goldSet.size(), pw);
+    }
 
-      correctEvents += correctSet.size();
-      guessedEvents += guessedSet.size();
-      goldEvents += goldSet.size();
+    /* Adds one sentence's counts to the totals and prints its line,
+     * unless pw is null. */
+    void addCounts(int correct, int guessed, int gold, PrintWriter pw) {
+      correctEvents.add(correct);
+      guessedEvents.add(guessed);
+      goldEvents.add(gold);
 
       int currentExact = 0;
-      if (correctSet.size() == guessedSet.size() &&
-          correctSet.size() == goldSet.size()) {
-        exact++;
+      if (correct == guessed && correct == gold) {
+        exact.increment();
         currentExact = 1;
       }
-      total++;
+      total.increment();
 
-      displayPRF(str + " [Current] ", 
-                 correctSet.size(), guessedSet.size(), goldSet.size(), 
-                 currentExact, 1, pw);
+      if (pw != null)
+        displayPRF(str + " [Current] ", 
+                   correct, guessed, gold, 
+                   currentExact, 1, pw);
+    }
 
+    /* Adds the totals of another Eval, e.g. one kept by another thread,
+     * to this one's. */
+    public void merge(AbstractEval<L> other) {
+      correctEvents.add(other.correctEvents.sum());
+      guessedEvents.add(other.guessedEvents.sum());
+      goldEvents.add(other.goldEvents.sum());
+      exact.add(other.exact.sum());
+      total.add(other.total.sum());
     }
 
     private void displayPRF(String prefixStr,
-                            int correct,
-                            int guessed,
-                            int gold,
-                            int exact,
-                            int total,
+                            long correct,
+                            long guessed,
+                            long gold,
+                            long exact,
+                            long total,
                             PrintWriter pw) {
 
       double precision = (guessed > 0 ? correct / (double) guessed : 1.0);
@@ -92,7 +125,8 @@ public class EnglishPennTreebankParseEvaluator<L> {
     }
 
     public void display(boolean verbose, PrintWriter pw) {
-      displayPRF(str+" [Average] ", correctEvents, guessedEvents, goldEvents, exact, total, pw);
+      displayPRF(str+" [Average] ", correctEvents.sum(), guessedEvents.sum(), goldEvents.sum(),
+                 exact.sum(), total.sum(), pw);
     }
   }
 
@@ -145,11 +179,131 @@ public class EnglishPennTreebankParseEvaluator<L> {
     }
   }
 
+  /**
+   * Scores labeled constituents.  evaluate() does not build sets of
+   * LabeledConstituent objects: each constituent is packed into a long
+   * (label id, start, end), the guessed and gold constituents are
+   * gathered into two reused long arrays, and each array is sorted and
+   * deduplicated.  The matches are then counted by merging the two.
+   * This gives the same counts as makeObjects() with no per-node
+   * objects, in O(n log n).  The arrays belong to the calling thread,
+   * so evaluate() may run on several threads at once.
+   */
   public static class LabeledConstituentEval<L> extends AbstractEval<L> {
 
+    /* Bits for each span end in a packed constituent; the label id takes
+     * the remaining high bits. */
+    static final int POSITION_BITS = 20;
+    static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
     Set<L> labelsToIgnore;
     Set<L> punctuationTags;
 
+    private final ConcurrentMap<L, Integer> labelIds = new ConcurrentHashMap<L, Integer>();
+    private final AtomicInteger numLabelIds = new AtomicInteger();
+    private final ThreadLocal<Constituents> buffers = new ThreadLocal<Constituents>() {
+      protected Constituents initialValue() {
+        return new Constituents();
+      }
+    };
+
+    /* One thread's packed guessed and gold constituents. */
+    private static class Constituents {
+      long[] guessed = new long[64];
+      long[] gold = new long[64];
+      int size;
+
+      long[] append(long[] constituents, long constituent) {
+        if (size == constituents.length)
+          constituents = Arrays.copyOf(constituents, 2 * constituents.length);
+        constituents[size++] = constituent;
+        return constituents;
+      }
+    }
+
+    public void evaluate(Tree<L> guess, Tree<L> gold, PrintWriter pw) {
+      Constituents constituents = buffers.get();
+      constituents.size = 0;
+      addPackedConstituents(guess, 0, true, constituents);
+      int numGuessed = sortUnique(constituents.guessed, constituents.size);
+      constituents.size = 0;
+      addPackedConstituents(gold, 0, false, constituents);
+      int numGold = sortUnique(constituents.gold, constituents.size);
+      addCounts(countCommon(constituents.guessed, numGuessed, constituents.gold, numGold),
+                numGuessed, numGold, pw);
+    }
+
+    /* Packs the constituents of the tree into the guessed or gold array
+     * and returns the tree's span.  Preterminals span one word, or none
+     * if they are punctuation, and are not constituents themselves. */
+    private int addPackedConstituents(Tree<L> tree, int start, boolean isGuess,
+                                      Constituents constituents) {
+      if (tree.isLeaf() || tree.isPreTerminal())
+        return (punctuationTags.contains(tree.getLabel()) ? 0 : 1);
+      int end = start;
+      List<Tree<L>> children = tree.getChildren();
+      for (int i = 0; i < children.size(); i++) {
+        end += addPackedConstituents(children.get(i), end, isGuess, constituents);
+      }
+      L label = tree.getLabel();
+      if (! labelsToIgnore.contains(label)) {
+        long constituent = pack(labelId(label), start, end);
+        if (isGuess)
+          constituents.guessed = constituents.append(constituents.guessed, constituent);
+        else
+          constituents.gold = constituents.append(constituents.gold, constituent);
+      }
+      return end - start;
+    }
+
+    /* Ids only need to be distinct, so one lost to a racing thread is
+     * simply skipped. */
+    private int labelId(L label) {
+      Integer id = labelIds.get(label);
+      if (id == null) {
+        Integer newId = numLabelIds.getAndIncrement();
+        id = labelIds.putIfAbsent(label, newId);
+        if (id == null)
+          id = newId;
+      }
+      return id;
+    }
+
+    static long pack(int labelId, int start, int end) {
+      if (end > POSITION_MASK)
+        throw new IllegalArgumentException("Sentence too long to evaluate: " + end);
+      return ((long) labelId << (2 * POSITION_BITS)) | ((long) start << POSITION_BITS) | end;
+    }
+
+    /* Sorts constituents[0..size) and drops repeats, as a set would;
+     * returns the number left. */
+    static int sortUnique(long[] constituents, int size) {
+      Arrays.sort(constituents, 0, size);
+      int numUnique = 0;
+      for (int i = 0; i < size; i++) {
+        if (numUnique == 0 || constituents[i] != constituents[numUnique - 1])
+          constituents[numUnique++] = constituents[i];
+      }
+      return numUnique;
+    }
+
+    /* Counts the values two sorted, duplicate-free arrays share. */
+    static int countCommon(long[] a, int aSize, long[] b, int bSize) {
+      int common = 0;
+      for (int i = 0, j = 0; i < aSize && j < bSize; ) {
+        if (a[i] < b[j]) {
+          i++;
+        } else if (a[i] > b[j]) {
+          j++;
+        } else {
+          common++;
+          i++;
+          j++;
+        }
+      }
+      return common;
+    }
+
     static <L> Tree<L> stripLeaves(Tree<L> tree) {
       if (tree.isLeaf())
         return null;
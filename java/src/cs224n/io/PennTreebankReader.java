@@ -3,9 +3,16 @@ package cs224n.io;
 import cs224n.ling.Tree;
 import cs224n.ling.Trees;
 import cs224n.util.ConcatenationIterator;
+import cs224n.util.StringInterner;
 
 import java.util.*;
 import java.io.*;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Dan Klein
@@ -19,6 +26,7 @@ public class PennTreebankReader {
     static class TreeIteratorIterator implements Iterator<Iterator<Tree<String>>> {
       Iterator<File> fileIterator;
       Iterator<Tree<String>> nextTreeIterator;
+      StringInterner interner = new StringInterner();
 
       public boolean hasNext() {
         return nextTreeIterator != null;
@@ -37,11 +45,13 @@ public class PennTreebankReader {
       private void advance() {
         nextTreeIterator = null;
         while (nextTreeIterator == null && fileIterator.hasNext()) {
+          File file = fileIterator.next();
+          System.out.println(file.getName());
           try {
-            File file = fileIterator.next();
-            System.out.println(file.getName());
-            nextTreeIterator = new Trees.PennTreeReader(new BufferedReader(new FileReader(file)));
-          } catch (FileNotFoundException e) {
+            nextTreeIterator = new Trees.MappedPennTreeReader(file, interner);
+          } catch (NoSuchFileException e) {
+          } catch (IOException e) {
+            throw new RuntimeException(e);
           }
         }
       }
@@ -119,6 +129,88 @@ public class PennTreebankReader {
     return new TreeCollection(path);
   }
 
+  /**
+   * Reads the trees in the given range of files and applies the
+   * transformer to each, with whole files read and transformed
+   * concurrently on up to numThreads threads.  The trees are returned in
+   * the order readTrees(path, lowFileNum, highFileNum) would iterate them,
+   * and the file names are printed in that order too.  Each thread
+   * interns labels and words in its own StringInterner.
+   */
+  public static List<Tree<String>> readTrees(String path, int lowFileNum, int highFileNum,
+                                             final Trees.TreeTransformer<String> transformer,
+                                             int numThreads) {
+    List<File> files = new TreeCollection(path, lowFileNum, highFileNum).files;
+    final ThreadLocal<StringInterner> interners = new ThreadLocal<StringInterner>() {
+      protected StringInterner initialValue() {
+        return new StringInterner();
+      }
+    };
+    ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, numThreads));
+    try {
+      List<Future<List<Tree<String>>>> futures = new ArrayList<Future<List<Tree<String>>>>();
+      for (final File file : files) {
+        futures.add(workers.submit(new Callable<List<Tree<String>>>() {
+          public List<Tree<String>> call() throws IOException {
+            return readFile(file, transformer, interners.get());
+          }
+        }));
+      }
+      List<Tree<String>> trees = new ArrayList<Tree<String>>();
+      for (int i = 0; i < files.size(); i++) {
+        System.out.println(files.get(i).getName());
+        trees.addAll(futures.get(i).get());
+      }
+      return trees;
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      workers.shutdown();
+    }
+  }
+
+  /**
+   * Iterates over the trees in the given range of files with the
+   * transformer applied, reading each file only when the iteration
+   * reaches it.  Nothing is kept of a tree once next() has returned it,
+   * so a treebank of any size can be passed over in bounded memory.
+   */
+  public static Iterator<Tree<String>> streamTrees(String path, int lowFileNum, int highFileNum,
+                                                   final Trees.TreeTransformer<String> transformer) {
+    final Iterator<Tree<String>> treeIterator =
+      new TreeCollection(path, lowFileNum, highFileNum).iterator();
+    return new Iterator<Tree<String>>() {
+      public boolean hasNext() {
+        return treeIterator.hasNext();
+      }
+
+      public Tree<String> next() {
+        return transformer.transformTree(treeIterator.next());
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static List<Tree<String>> readFile(File file, Trees.TreeTransformer<String> transformer,
+                                             StringInterner interner) throws IOException {
+    List<Tree<String>> trees = new ArrayList<Tree<String>>();
+    Iterator<Tree<String>> treeIterator;
+    try {
+      treeIterator = new Trees.MappedPennTreeReader(file, interner);
+    } catch (NoSuchFileException e) {
+      return trees;
+    }
+    while (treeIterator.hasNext()) {
+      trees.add(transformer.transformTree(treeIterator.next()));
+    }
+    return trees;
+  }
+
   public static void main(String[] args) {
     Collection<Tree<String>> trees = readTrees(args[0]);
     for (Tree<String> tree : trees) {
@@ -0,0 +1,223 @@
+package cs224n.io;
+
+import cs224n.ling.Tree;
+import cs224n.ling.Trees;
+import cs224n.util.Index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Caches transformed treebank ranges in a compact binary file, so that
+ * later runs can skip parsing the .mrg text and normalizing the trees.
+ * A cache file holds a symbol table of every label and word, then each
+ * tree in preorder as (symbol id, number of children) pairs of ints.
+ * Files are named after the data directory, the file range and the
+ * transformer's fully qualified class name, and record a fingerprint of
+ * that class name and the source files (their paths, sizes and
+ * modification times).  The file ends with the magic number again, so a
+ * truncated file is noticed.  A cache whose fingerprint no longer
+ * matches, or which cannot be read for any reason, is rebuilt.  Cache
+ * files are read through a memory map.
+ */
+public class TreebankCache {
+  static final int MAGIC = 0x54524545; // "TREE"
+  static final int VERSION = 2;
+
+  /**
+   * Returns the trees of the given file range with the transformer
+   * applied, as PennTreebankReader.readTrees(path, lowFileNum,
+   * highFileNum, transformer, numThreads) does, but from a cache file in
+   * cacheDir when there is a current one.  Otherwise the trees are read
+   * and transformed on numThreads threads and the cache file is written.
+   */
+  public static List<Tree<String>> readTrees(File cacheDir, String path, int lowFileNum,
+                                             int highFileNum,
+                                             Trees.TreeTransformer<String> transformer,
+                                             int numThreads) {
+    List<File> files = new PennTreebankReader.TreeCollection(path, lowFileNum, highFileNum).files;
+    String transformerName = transformer.getClass().getName();
+    long fingerprint = fingerprint(transformerName, files);
+    File cacheFile = new File(cacheDir, new File(path).getName() + "-" + lowFileNum + "-"
+                              + highFileNum + "-" + transformerName + ".trees");
+    if (cacheFile.isFile()) {
+      List<Tree<String>> trees = null;
+      try {
+        trees = read(cacheFile, fingerprint);
+      } catch (IOException e) {
+        // unreadable; rebuilt below
+      }
+      if (trees != null) {
+        System.out.println(cacheFile.getName());
+        return trees;
+      }
+    }
+    try {
+      List<Tree<String>> trees = PennTreebankReader.readTrees(path, lowFileNum, highFileNum,
+                                                              transformer, numThreads);
+      cacheDir.mkdirs();
+      write(cacheFile, trees, fingerprint);
+      return trees;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /* Summarizes the transformer and the source files, so a cache built
+   * with another transformer, from other files, or from older versions
+   * of them, is not used. */
+  static long fingerprint(String transformerName, List<File> files) {
+    long fingerprint = transformerName.hashCode();
+    fingerprint = 31 * fingerprint + files.size();
+    for (File file : files) {
+      fingerprint = 31 * fingerprint + file.getAbsolutePath().hashCode();
+      fingerprint = 31 * fingerprint + file.length();
+      fingerprint = 31 * fingerprint + file.lastModified();
+    }
+    return fingerprint;
+  }
+
+  /**
+   * Writes the trees to a cache file, replacing it atomically.
+   */
+  public static void write(File cacheFile, List<Tree<String>> trees, long fingerprint)
+      throws IOException {
+    Index<String> symbols = new Index<String>();
+    int numNodes = 0;
+    for (Tree<String> tree : trees) {
+      numNodes += indexSymbols(tree, symbols);
+    }
+    File tempFile = new File(cacheFile.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tempFile), 1 << 16));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(fingerprint);
+        out.writeInt(symbols.size());
+        for (String symbol : symbols) {
+          byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+        out.writeInt(trees.size());
+        out.writeInt(numNodes);
+        for (Tree<String> tree : trees) {
+          writeTree(tree, symbols, out);
+        }
+        out.writeInt(MAGIC);
+      } finally {
+        out.close();
+      }
+      Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      // only left behind if writing or moving it failed
+      Files.deleteIfExists(tempFile.toPath());
+    }
+  }
+
+  private static int indexSymbols(Tree<String> tree, Index<String> symbols) {
+    if (tree.getLabel() == null)
+      throw new RuntimeException("Cannot cache a tree with a null label: " + tree);
+    symbols.add(tree.getLabel());
+    int numNodes = 1;
+    for (Tree<String> child : tree.getChildren()) {
+      numNodes += indexSymbols(child, symbols);
+    }
+    return numNodes;
+  }
+
+  private static void writeTree(Tree<String> tree, Index<String> symbols, DataOutputStream out)
+      throws IOException {
+    out.writeInt(symbols.indexOf(tree.getLabel()));
+    out.writeInt(tree.getChildren().size());
+    for (Tree<String> child : tree.getChildren()) {
+      writeTree(child, symbols, out);
+    }
+  }
+
+  /**
+   * Reads the trees of a cache file, or returns null if the file is not a
+   * complete cache of this version, its fingerprint differs from the
+   * given one, or its contents are inconsistent.
+   */
+  public static List<Tree<String>> read(File cacheFile, long fingerprint) throws IOException {
+    ByteBuffer bytes;
+    FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ);
+    try {
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      channel.close();
+    }
+    if (bytes.remaining() < 20 || bytes.getInt(bytes.limit() - 4) != MAGIC)
+      return null;
+    if (bytes.getInt() != MAGIC || bytes.getInt() != VERSION || bytes.getLong() != fingerprint)
+      return null;
+    try {
+      return readTrees(bytes);
+    } catch (RuntimeException e) {
+      // out-of-range lengths, ids or counts: a damaged file
+      return null;
+    }
+  }
+
+  private static List<Tree<String>> readTrees(ByteBuffer bytes) {
+    int numSymbols = bytes.getInt();
+    if (numSymbols < 0 || numSymbols > bytes.remaining() / 4)
+      throw new IllegalArgumentException("Bad symbol count " + numSymbols);
+    String[] symbols = new String[numSymbols];
+    byte[] symbolBytes = new byte[64];
+    for (int i = 0; i < symbols.length; i++) {
+      int length = bytes.getInt();
+      if (length < 0 || length > bytes.remaining())
+        throw new IllegalArgumentException("Bad symbol length " + length);
+      if (length > symbolBytes.length)
+        symbolBytes = new byte[Math.max(length, 2 * symbolBytes.length)];
+      bytes.get(symbolBytes, 0, length);
+      symbols[i] = new String(symbolBytes, 0, length, StandardCharsets.UTF_8);
+    }
+    int numTrees = bytes.getInt();
+    int numNodes = bytes.getInt();
+    if (numTrees < 0 || numTrees > numNodes || bytes.remaining() != 8L * numNodes + 4)
+      throw new IllegalArgumentException("Cache size does not match its header");
+    int[] nodes = new int[2 * numNodes];
+    IntBuffer ints = bytes.slice().asIntBuffer();
+    ints.get(nodes);
+    List<Tree<String>> trees = new ArrayList<Tree<String>>(numTrees);
+    int[] position = new int[1];
+    for (int i = 0; i < numTrees; i++) {
+      trees.add(readTree(nodes, position, symbols));
+    }
+    if (position[0] != nodes.length)
+      throw new IllegalArgumentException("Cache nodes do not match its trees");
+    return trees;
+  }
+
+  /* Builds the tree whose preorder encoding starts at nodes[position[0]],
+   * and moves position past it. */
+  private static Tree<String> readTree(int[] nodes, int[] position, String[] symbols) {
+    if (position[0] >= nodes.length)
+      throw new IllegalArgumentException("Cache trees run past its nodes");
+    String label = symbols[nodes[position[0]]];
+    int numChildren = nodes[position[0] + 1];
+    position[0] += 2;
+    if (numChildren == 0)
+      return new Tree<String>(label);
+    if (numChildren < 0 || numChildren > (nodes.length - position[0]) / 2)
+      throw new IllegalArgumentException("Bad child count " + numChildren);
+    List<Tree<String>> children = new ArrayList<Tree<String>>(numChildren);
+    for (int i = 0; i < numChildren; i++) {
+      children.add(readTree(nodes, position, symbols));
+    }
+    return new Tree<String>(label, children);
+  }
+}
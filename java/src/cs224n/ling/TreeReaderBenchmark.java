@@ -0,0 +1,124 @@
+package cs224n.ling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import cs224n.util.StringInterner;
+
+/**
+ * Measures how fast Trees.PennTreeReader and Trees.MappedPennTreeReader
+ * read a synthetic corpus in .mrg format, in MB/s, and checks that they
+ * read the same trees.  The first reads the corpus from a StringReader,
+ * so its figure is for the tokenizer alone; the mapped reader reads a
+ * temporary file holding the corpus, which will usually be in the page
+ * cache.
+ *
+ * Usage: java cs224n.ling.TreeReaderBenchmark [corpusMB] [numRounds]
+ */
+public class TreeReaderBenchmark {
+
+  static final String[] PHRASES = { "S", "NP-SBJ", "VP", "PP-LOC", "SBAR", "ADJP", "NP" };
+  static final String[] TAGS = { "NN", "NNS", "NNP", "DT", "JJ", "IN", "VBD", "VBZ", "RB", "CD" };
+
+  static Tree<String> randomTree(Random random, int depth) {
+    if (depth == 0 || random.nextInt(3) == 0) {
+      String word = (random.nextInt(10) == 0
+                     ? Integer.toString(random.nextInt(10000))
+                     : "w" + Integer.toString(random.nextInt(20000), 36));
+      if (random.nextInt(500) == 0)
+        word += "\u00e9";
+      String tag = TAGS[random.nextInt(TAGS.length)];
+      return new Tree<String>(tag, Collections.singletonList(new Tree<String>(word)));
+    }
+    List<Tree<String>> children = new ArrayList<Tree<String>>();
+    int numChildren = 1 + random.nextInt(3);
+    for (int i = 0; i < numChildren; i++) {
+      children.add(randomTree(random, depth - 1));
+    }
+    return new Tree<String>(PHRASES[random.nextInt(PHRASES.length)], children);
+  }
+
+  /* Renders random trees, each under an unlabeled root bracket as in the
+   * treebank files, until the corpus holds about numChars chars. */
+  static String makeCorpus(int numChars) {
+    Random random = new Random(1);
+    StringBuilder sb = new StringBuilder(numChars + 4096);
+    while (sb.length() < numChars) {
+      Tree<String> tree = new Tree<String>("", Collections.singletonList(randomTree(random, 8)));
+      sb.append(Trees.PennTreeRenderer.render(tree));
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  static int countNodes(Tree<String> tree) {
+    int numNodes = 1;
+    for (Tree<String> child : tree.getChildren()) {
+      numNodes += countNodes(child);
+    }
+    return numNodes;
+  }
+
+  static long checksum(Iterator<Tree<String>> trees) {
+    long checksum = 0;
+    while (trees.hasNext()) {
+      checksum = checksum * 31 + countNodes(trees.next());
+    }
+    return checksum;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int corpusMB = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    int numRounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    String corpus = makeCorpus(corpusMB << 20);
+    File file = File.createTempFile("trees", ".mrg");
+    file.deleteOnExit();
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    out.write(corpus);
+    out.close();
+    double megabytes = file.length() / (double) (1 << 20);
+
+    Iterator<Tree<String>> oldTrees = new Trees.PennTreeReader(new StringReader(corpus));
+    Iterator<Tree<String>> mappedTrees = new Trees.MappedPennTreeReader(file, new StringInterner());
+    int numTrees = 0;
+    int numDifferent = 0;
+    while (oldTrees.hasNext() && mappedTrees.hasNext()) {
+      if (!oldTrees.next().toString().equals(mappedTrees.next().toString()))
+        numDifferent++;
+      numTrees++;
+    }
+    if (oldTrees.hasNext() || mappedTrees.hasNext())
+      numDifferent++;
+
+    long[] times = new long[2];
+    long[] checksums = new long[2];
+    for (int round = 0; round < numRounds; round++) {
+      long start = System.nanoTime();
+      checksums[0] ^= checksum(new Trees.PennTreeReader(new StringReader(corpus)));
+      times[0] += System.nanoTime() - start;
+      start = System.nanoTime();
+      checksums[1] ^= checksum(new Trees.MappedPennTreeReader(file, new StringInterner()));
+      times[1] += System.nanoTime() - start;
+    }
+    System.out.printf("Corpus: %.1f MB, %d trees, %d rounds%n", megabytes, numTrees, numRounds);
+    report("PennTreeReader", times[0], megabytes * numRounds);
+    report("MappedPennTreeReader", times[1], megabytes * numRounds);
+    System.out.println("Trees differing: " + numDifferent + ", same checksums: "
+                       + (checksums[0] == checksums[1]));
+  }
+
+  private static void report(String name, long nanos, double megabytes) {
+    System.out.printf("%-24s %8.1f ms  (%.1f MB/s)%n", name, nanos / 1e6,
+                      megabytes / (nanos / 1e9));
+  }
+}
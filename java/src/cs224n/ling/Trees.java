@@ -1,11 +1,16 @@
 package cs224n.ling;
 
 import cs224n.util.Filter;
+import cs224n.util.StringInterner;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PushbackReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -339,6 +344,128 @@ public class Trees {
 		}
 	}
 
+	/**
+	 * Reads the same trees as PennTreeReader straight from the bytes of a
+	 * file, which is memory-mapped rather than read through a Reader.  The
+	 * brackets and white space are scanned as ASCII in the mapping itself,
+	 * by absolute index, and no bytes are copied out of it; only labels
+	 * and words become Strings, through a StringInterner that looks ASCII
+	 * tokens up by their byte range.  Any token with non-ASCII bytes is
+	 * decoded as UTF-8.
+	 */
+	public static class MappedPennTreeReader implements Iterator<Tree<String>> {
+		ByteBuffer bytes;
+		StringInterner interner;
+		/* The next unread byte is bytes.get(position); the trees end at
+		 * limit. */
+		int position;
+		int limit;
+		Tree<String> nextTree;
+
+		public boolean hasNext() {
+			return (nextTree != null);
+		}
+
+		public Tree<String> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Tree<String> tree = nextTree;
+			nextTree = readRootTree();
+			return tree;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private Tree<String> readRootTree() {
+			if (skipWhiteSpace() != '(') {
+				bytes = null;
+				return null;
+			}
+			return readTree(true);
+		}
+
+		private Tree<String> readTree(boolean isRoot) {
+			readChar('(');
+			skipWhiteSpace();
+			String label = readText();
+			if (label.length() == 0 && isRoot)
+				label = TreeReader.ROOT_LABEL;
+			List<Tree<String>> children;
+			if (skipWhiteSpace() != '(') {
+				children = Collections.singletonList(new Tree<String>(readText()));
+			} else {
+				children = new ArrayList<Tree<String>>();
+				while (skipWhiteSpace() != ')') {
+					children.add(readTree(false));
+				}
+			}
+			readChar(')');
+			return new Tree<String>(label, children);
+		}
+
+		private void readChar(char expected) {
+			if (skipWhiteSpace() != expected)
+				throw new RuntimeException("Format error reading tree.");
+			position++;
+		}
+
+		/* Reads up to the next white space or paren. */
+		private String readText() {
+			int start = position;
+			while (position < limit && !isDelimiter(bytes.get(position))) {
+				position++;
+			}
+			return interner.intern(bytes, start, position);
+		}
+
+		/* Skips white space and returns the next byte without reading it,
+		 * or -1 at the end of the trees. */
+		private int skipWhiteSpace() {
+			while (position < limit) {
+				int ch = bytes.get(position) & 0xff;
+				if (!isWhiteSpace(ch))
+					return ch;
+				position++;
+			}
+			return -1;
+		}
+
+		private static boolean isWhiteSpace(int ch) {
+			return (ch == ' ' || ch == '\t' || ch == '\f' || ch == '\r' || ch == '\n');
+		}
+
+		private static boolean isDelimiter(int ch) {
+			return (ch == '(' || ch == ')' || isWhiteSpace(ch));
+		}
+
+		/* Maps the whole file; the mapping stays valid after its channel
+		 * is closed, until it is garbage collected. */
+		private static ByteBuffer map(File file) throws IOException {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				channel.close();
+			}
+		}
+
+		public MappedPennTreeReader(File file, StringInterner interner) throws IOException {
+			this(map(file), interner);
+		}
+
+		/* Reads the trees between the buffer's position and its limit,
+		 * without moving the buffer's own position. */
+		public MappedPennTreeReader(ByteBuffer bytes, StringInterner interner) {
+			this.bytes = bytes;
+			this.interner = interner;
+			position = bytes.position();
+			limit = bytes.limit();
+			nextTree = readRootTree();
+		}
+	}
+
 	public static class GENIATreeReader extends TreeReader implements Iterator<Tree<String>> {
 	
 		public Tree<String> readRootTree() {
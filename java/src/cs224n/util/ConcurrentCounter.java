@@ -0,0 +1,113 @@
+package cs224n.util;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * A thread-safe Counter for tallying from many threads at once.  Each key's
+ * count is a DoubleAdder, which spreads contended increments over striped
+ * cells and sums them when read, so concurrent increments never take a
+ * global lock.  Counts are only meant to be read once tallying is done;
+ * use toCounter() to take a plain snapshot.
+ */
+public class ConcurrentCounter<E> implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final ConcurrentMap<E, DoubleAdder> entries = new ConcurrentHashMap<E, DoubleAdder>();
+
+  private DoubleAdder ensureAdder(E key) {
+    DoubleAdder adder = entries.get(key);
+    if (adder == null) {
+      DoubleAdder newAdder = new DoubleAdder();
+      adder = entries.putIfAbsent(key, newAdder);
+      if (adder == null)
+        adder = newAdder;
+    }
+    return adder;
+  }
+
+  /**
+   * The elements in the counter.
+   */
+  public Set<E> keySet() {
+    return entries.keySet();
+  }
+
+  /**
+   * The number of entries in the counter (not the total count -- use totalCount() instead).
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  public boolean containsKey(E key) {
+    return entries.containsKey(key);
+  }
+
+  /**
+   * Get the count of the element, or zero if the element is not in the
+   * counter.
+   */
+  public double getCount(E key) {
+    DoubleAdder adder = entries.get(key);
+    return (adder == null ? 0.0 : adder.sum());
+  }
+
+  /**
+   * Increment a key's count by the given amount.  Safe to call from any
+   * number of threads.
+   */
+  public void incrementCount(E key, double increment) {
+    ensureAdder(key).add(increment);
+  }
+
+  /**
+   * Finds the total of all counts in the counter.
+   */
+  public double totalCount() {
+    double total = 0.0;
+    for (DoubleAdder adder : entries.values()) {
+      total += adder.sum();
+    }
+    return total;
+  }
+
+  /**
+   * Finds the key with maximum count.  This is a linear operation, and ties are broken arbitrarily.
+   */
+  public E argMax() {
+    double maxCount = Double.NEGATIVE_INFINITY;
+    E maxKey = null;
+    for (Map.Entry<E, DoubleAdder> entry : entries.entrySet()) {
+      double count = entry.getValue().sum();
+      if (count > maxCount || maxKey == null) {
+        maxKey = entry.getKey();
+        maxCount = count;
+      }
+    }
+    return maxKey;
+  }
+
+  /**
+   * Copies the current counts into an ordinary Counter.
+   */
+  public Counter<E> toCounter() {
+    Counter<E> counter = new Counter<E>();
+    for (Map.Entry<E, DoubleAdder> entry : entries.entrySet()) {
+      counter.setCount(entry.getKey(), entry.getValue().sum());
+    }
+    return counter;
+  }
+
+  public String toString() {
+    return toCounter().toString();
+  }
+}
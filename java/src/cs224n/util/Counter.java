@@ -1,6 +1,9 @@
 package cs224n.util;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Collection;
@@ -8,13 +11,49 @@ import java.util.Collection;
 /**
  * A map from objects to doubles.  Includes convenience methods for getting,
  * setting, and incrementing element counts.  Objects not in the counter will
- * return a count of zero.  The counter is backed by a HashMap (unless specified
- * otherwise with the MapFactory constructor).
+ * return a count of zero.  The counter is backed by an open-addressing
+ * table of primitive doubles (ObjectDoubleHashMap), so counting does not box;
+ * the MapFactory constructor instead backs it with a map of the given kind.
+ * A counter built with Counter(true) also keeps its total count and the
+ * key with the maximum count up to date as counts change, so that
+ * totalCount() and argMax() are usually constant time, at some cost to
+ * every increment.
  *
  * @author Dan Klein
  */
 public class Counter <E> implements Serializable {
   Map<E, Double> entries;
+  ObjectDoubleHashMap<E> table;
+  transient Set<E> keySet;
+
+  final boolean maintainAggregates;
+  double total = 0.0;
+  /* Set when an infinite or NaN count makes the running total unreliable. */
+  boolean totalStale = false;
+  E maxKey;
+  double maxCount = Double.NEGATIVE_INFINITY;
+  boolean hasMax = false;
+  /* Set when the maximum key's count went down, so another key may now
+   * have the maximum; argMax() then rescans. */
+  boolean maxStale = false;
+
+  /* Updates the running total and maximum for a key's new count. */
+  private void updateAggregates(E key, double oldCount, double newCount) {
+    double delta = newCount - oldCount;
+    if (delta - delta != 0.0) // infinite or NaN
+      totalStale = true;
+    else
+      total += delta;
+    if (newCount > maxCount || ! hasMax) {
+      if (maxKey != key)
+        maxKey = key;
+      maxCount = newCount;
+      hasMax = true;
+      maxStale = false;
+    } else if (delta < 0.0 && ! maxStale && (key == maxKey || (key != null && key.equals(maxKey)))) {
+      maxStale = true;
+    }
+  }
 
   /**
    * The elements in the counter.
@@ -22,14 +61,18 @@ public class Counter <E> implements Serializable {
    * @return set of keys
    */
   public Set<E> keySet() {
-    return entries.keySet();
+    if (table == null)
+      return entries.keySet();
+    if (keySet == null)
+      keySet = table.keySet();
+    return keySet;
   }
 
   /**
    * The number of entries in the counter (not the total count -- use totalCount() instead).
    */
   public int size() {
-    return entries.size();
+    return (table != null ? table.size() : entries.size());
   }
 
   /**
@@ -49,7 +92,7 @@ public class Counter <E> implements Serializable {
    * @return whether the counter contains the key
    */
   public boolean containsKey(E key) {
-    return entries.containsKey(key);
+    return (table != null ? table.containsKey(key) : entries.containsKey(key));
   }
 
   /**
@@ -59,6 +102,8 @@ public class Counter <E> implements Serializable {
    * @param key
    */
   public double getCount(E key) {
+    if (table != null)
+      return table.get(key);
     Double value = entries.get(key);
     if (value == null)
       return 0;
@@ -72,7 +117,15 @@ public class Counter <E> implements Serializable {
    * @param count
    */
   public void setCount(E key, double count) {
-    entries.put(key, count);
+    double oldCount;
+    if (table != null) {
+      oldCount = table.put(key, count);
+    } else {
+      Double oldValue = entries.put(key, count);
+      oldCount = (oldValue == null ? 0.0 : oldValue);
+    }
+    if (maintainAggregates)
+      updateAggregates(key, oldCount, count);
   }
 
   /**
@@ -82,7 +135,13 @@ public class Counter <E> implements Serializable {
    * @param increment
    */
   public void incrementCount(E key, double increment) {
-    setCount(key, getCount(key) + increment);
+    if (table != null) {
+      double count = table.add(key, increment);
+      if (maintainAggregates)
+        updateAggregates(key, count - increment, count);
+    } else {
+      setCount(key, getCount(key) + increment);
+    }
   }
 
   /**
@@ -102,34 +161,147 @@ public class Counter <E> implements Serializable {
   }
 
   /**
-   * Finds the total of all counts in the counter.  This implementation iterates
-   * through the entire counter every time this method is called.
+   * Finds the total of all counts in the counter.  This iterates through
+   * the entire counter, unless the counter maintains its total (in which
+   * case it only rescans after a count has been infinite or NaN).
    *
    * @return the counter's total
    */
   public double totalCount() {
-    double total = 0.0;
-    for (Map.Entry<E, Double> entry : entries.entrySet()) {
-      total += entry.getValue();
+    if (maintainAggregates && ! totalStale)
+      return total;
+    double scanTotal = 0.0;
+    if (table != null) {
+      for (int slot = 0; slot < table.capacity(); slot++) {
+        if (table.occupied(slot))
+          scanTotal += table.values[slot];
+      }
+    } else {
+      for (Map.Entry<E, Double> entry : entries.entrySet()) {
+        scanTotal += entry.getValue();
+      }
+    }
+    if (maintainAggregates && ! Double.isInfinite(scanTotal) && ! Double.isNaN(scanTotal)) {
+      total = scanTotal;
+      totalStale = false;
     }
-    return total;
+    return scanTotal;
   }
 
   /**
-   * Finds the key with maximum count.  This is a linear operation, and ties are broken arbitrarily.
+   * Finds the key with maximum count.  This is a linear operation, unless
+   * the counter maintains its maximum (in which case it only rescans after
+   * the maximum key's count has gone down).  Ties are broken arbitrarily.
    *
-   * @return a key with minumum count
+   * @return a key with maximum count
    */
   public E argMax() {
-    double maxCount = Double.NEGATIVE_INFINITY;
-    E maxKey = null;
-    for (Map.Entry<E, Double> entry : entries.entrySet()) {
-      if (entry.getValue() > maxCount || maxKey == null) {
-        maxKey = entry.getKey();
-        maxCount = entry.getValue();
+    if (maintainAggregates && ! maxStale)
+      return maxKey;
+    double bestCount = Double.NEGATIVE_INFINITY;
+    E bestKey = null;
+    boolean found = false;
+    if (table != null) {
+      for (int slot = 0; slot < table.capacity(); slot++) {
+        if (table.occupied(slot) && (table.values[slot] > bestCount || !found)) {
+          bestKey = table.keyAt(slot);
+          bestCount = table.values[slot];
+          found = true;
+        }
+      }
+    } else {
+      for (Map.Entry<E, Double> entry : entries.entrySet()) {
+        if (entry.getValue() > bestCount || !found) {
+          bestKey = entry.getKey();
+          bestCount = entry.getValue();
+          found = true;
+        }
+      }
+    }
+    if (maintainAggregates) {
+      maxKey = bestKey;
+      maxCount = bestCount;
+      hasMax = found;
+      maxStale = false;
+    }
+    return bestKey;
+  }
+
+  /**
+   * Returns the k keys with the largest counts (or all keys, if there are
+   * fewer), in decreasing order of count.  Selection keeps a min-heap of
+   * the best k seen so far, so this takes O(n log k) time rather than a
+   * full sort.
+   */
+  public List<E> topK(int k) {
+    TopK<E> best = new TopK<E>(Math.min(k, size()));
+    if (table != null) {
+      for (int slot = 0; slot < table.capacity(); slot++) {
+        if (table.occupied(slot))
+          best.offer(table.keyAt(slot), table.values[slot]);
+      }
+    } else {
+      for (Map.Entry<E, Double> entry : entries.entrySet()) {
+        best.offer(entry.getKey(), entry.getValue());
       }
     }
-    return maxKey;
+    return best.sortedKeys();
+  }
+
+  /* A bounded min-heap holding the k largest counts offered to it. */
+  private static class TopK<E> {
+    final Object[] keys;
+    final double[] counts;
+    int size = 0;
+
+    void offer(E key, double count) {
+      if (size < keys.length) {
+        int i = size++;
+        while (i > 0 && counts[(i - 1) / 2] > count) {
+          keys[i] = keys[(i - 1) / 2];
+          counts[i] = counts[(i - 1) / 2];
+          i = (i - 1) / 2;
+        }
+        keys[i] = key;
+        counts[i] = count;
+      } else if (size > 0 && count > counts[0]) {
+        siftDown(key, count, size);
+      }
+    }
+
+    /* Places a key at the root and sifts it down within the first n slots. */
+    private void siftDown(Object key, double count, int n) {
+      int i = 0;
+      while (2 * i + 1 < n) {
+        int child = 2 * i + 1;
+        if (child + 1 < n && counts[child + 1] < counts[child])
+          child++;
+        if (counts[child] >= count)
+          break;
+        keys[i] = keys[child];
+        counts[i] = counts[child];
+        i = child;
+      }
+      keys[i] = key;
+      counts[i] = count;
+    }
+
+    /* Empties the heap, returning its keys largest count first. */
+    @SuppressWarnings("unchecked")
+    List<E> sortedKeys() {
+      Object[] sorted = new Object[size];
+      for (int n = size; n > 0; n--) {
+        sorted[n - 1] = keys[0];
+        siftDown(keys[n - 1], counts[n - 1], n - 1);
+      }
+      size = 0;
+      return new ArrayList<E>((List<E>) Arrays.asList(sorted));
+    }
+
+    TopK(int k) {
+      keys = new Object[k];
+      counts = new double[k];
+    }
   }
 
   /**
@@ -150,7 +322,19 @@ public class Counter <E> implements Serializable {
    * @return partial string representation
    */
   public String toString(int maxKeysToPrint) {
-    return asPriorityQueue().toString(maxKeysToPrint);
+    List<E> keys = topK(maxKeysToPrint);
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < keys.size(); i++) {
+      sb.append(keys.get(i));
+      sb.append(" : ");
+      sb.append(getCount(keys.get(i)));
+      if (i < size() - 1)
+        sb.append(", ");
+    }
+    if (keys.size() < size())
+      sb.append("...");
+    sb.append("]");
+    return sb.toString();
   }
 
   /**
@@ -158,7 +342,14 @@ public class Counter <E> implements Serializable {
    * whose priorities are those elements' counts in the counter.
    */
   public PriorityQueue<E> asPriorityQueue() {
-    PriorityQueue<E> pq = new PriorityQueue<E>(entries.size());
+    PriorityQueue<E> pq = new PriorityQueue<E>(size());
+    if (table != null) {
+      for (int slot = 0; slot < table.capacity(); slot++) {
+        if (table.occupied(slot))
+          pq.add(table.keyAt(slot), table.values[slot]);
+      }
+      return pq;
+    }
     for (Map.Entry<E, Double> entry : entries.entrySet()) {
       pq.add(entry.getKey(), entry.getValue());
     }
@@ -166,15 +357,25 @@ public class Counter <E> implements Serializable {
   }
 
   public Counter() {
-    this(new MapFactory.HashMapFactory<E, Double>());
+    this(false);
+  }
+
+  /**
+   * Makes a counter which, if maintainAggregates is true, keeps its total
+   * and maximum up to date as counts change.
+   */
+  public Counter(boolean maintainAggregates) {
+    this.maintainAggregates = maintainAggregates;
+    table = new ObjectDoubleHashMap<E>();
   }
 
   public Counter(MapFactory<E, Double> mf) {
+    maintainAggregates = false;
     entries = mf.buildMap();
   }
 
   public static void main(String[] args) {
-    Counter<String> counter = new Counter<String>();
+    Counter<String> counter = new Counter<String>(true);
     System.out.println(counter);
     counter.incrementCount("planets", 7);
     System.out.println(counter);
@@ -186,6 +387,8 @@ public class Counter <E> implements Serializable {
     System.out.println(counter);
     System.out.println(counter.toString(2));
     System.out.println("Total: " + counter.totalCount());
+    counter.incrementCount("planets", -8);
+    System.out.println("Max: " + counter.argMax() + " top 2: " + counter.topK(2));
   }
 
 }
@@ -16,15 +16,28 @@ import java.util.Set;
 public class CounterMap<K, V> {
 
   private MapFactory<V, Double> mf;
+  private boolean maintainAggregates;
   private Map<K, Counter<V>> counterMap;
 
   // -----------------------------------------------------------------------
 
   public CounterMap() {
-    this(new MapFactory.HashMapFactory<K, Counter<V>>(), 
-         new MapFactory.HashMapFactory<V, Double>());
+    this(new MapFactory.HashMapFactory<K, Counter<V>>(), null);
   }
 
+  /**
+   * Makes sub-counters which, if maintainAggregates is true, keep their
+   * totals and maxima up to date (see Counter(boolean)).
+   */
+  public CounterMap(boolean maintainAggregates) {
+    this();
+    this.maintainAggregates = maintainAggregates;
+  }
+
+  /**
+   * Uses the given inner MapFactory for the sub-counters, or the default
+   * Counter backing store if it is null.
+   */
   public CounterMap(MapFactory<K, Counter<V>> outerMF, 
                     MapFactory<V, Double> innerMF) {
     mf = innerMF;
@@ -36,7 +49,7 @@ public class CounterMap<K, V> {
   protected Counter<V> ensureCounter(K key) {
     Counter<V> valueCounter = counterMap.get(key);
     if (valueCounter == null) {
-      valueCounter = new Counter<V>(mf);
+      valueCounter = (mf == null ? new Counter<V>(maintainAggregates) : new Counter<V>(mf));
       counterMap.put(key, valueCounter);
     }
     return valueCounter;
@@ -0,0 +1,203 @@
+package cs224n.util;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary-heap priority queue over int handles in [0, capacity), with
+ * priorities kept in a double[] indexed by handle.  Like PriorityQueue,
+ * the highest priority comes out first.  Because each handle's heap
+ * position is tracked, a queued handle's priority can be changed in
+ * O(log n) -- promote() is the decrease-key of a min-queue -- and
+ * nothing is boxed or allocated once the queue has been sized.
+ */
+public class IndexedPriorityQueue {
+  int size;
+  int[] heap;
+  int[] positions;
+  double[] priorities;
+
+  /**
+   * Makes room for handles up to newCapacity - 1.  Queued handles keep
+   * their positions and priorities.
+   */
+  public void ensureCapacity(int newCapacity) {
+    if (newCapacity <= positions.length)
+      return;
+    int oldCapacity = positions.length;
+    heap = Arrays.copyOf(heap, newCapacity);
+    positions = Arrays.copyOf(positions, newCapacity);
+    Arrays.fill(positions, oldCapacity, newCapacity, -1);
+    priorities = Arrays.copyOf(priorities, newCapacity);
+  }
+
+  protected void siftUp(int loc) {
+    int handle = heap[loc];
+    double priority = priorities[handle];
+    while (loc > 0) {
+      int parent = (loc - 1) / 2;
+      int parentHandle = heap[parent];
+      if (priorities[parentHandle] >= priority)
+        break;
+      heap[loc] = parentHandle;
+      positions[parentHandle] = loc;
+      loc = parent;
+    }
+    heap[loc] = handle;
+    positions[handle] = loc;
+  }
+
+  protected void siftDown(int loc) {
+    int handle = heap[loc];
+    double priority = priorities[handle];
+    while (true) {
+      int child = 2 * loc + 1;
+      if (child >= size)
+        break;
+      if (child + 1 < size && priorities[heap[child + 1]] > priorities[heap[child]])
+        child++;
+      int childHandle = heap[child];
+      if (priorities[childHandle] <= priority)
+        break;
+      heap[loc] = childHandle;
+      positions[childHandle] = loc;
+      loc = child;
+    }
+    heap[loc] = handle;
+    positions[handle] = loc;
+  }
+
+  /**
+   * True if the handle is currently in the queue.
+   */
+  public boolean contains(int handle) {
+    return positions[handle] >= 0;
+  }
+
+  /**
+   * Adds a handle which is not already in the queue.
+   */
+  public void add(int handle, double priority) {
+    if (contains(handle))
+      throw new IllegalArgumentException("Handle already queued: " + handle);
+    priorities[handle] = priority;
+    heap[size] = handle;
+    positions[handle] = size;
+    size++;
+    siftUp(size - 1);
+  }
+
+  /**
+   * Sets the priority of a queued handle, moving it up or down as needed.
+   */
+  public void changePriority(int handle, double priority) {
+    int loc = positions[handle];
+    if (loc < 0)
+      throw new NoSuchElementException("Handle not queued: " + handle);
+    double oldPriority = priorities[handle];
+    priorities[handle] = priority;
+    if (priority > oldPriority)
+      siftUp(loc);
+    else
+      siftDown(loc);
+  }
+
+  /**
+   * Adds the handle if it is not queued, or raises its priority if the
+   * new one is higher.  Returns true if the queue changed.
+   */
+  public boolean promote(int handle, double priority) {
+    if (!contains(handle)) {
+      add(handle, priority);
+      return true;
+    }
+    if (priority <= priorities[handle])
+      return false;
+    priorities[handle] = priority;
+    siftUp(positions[handle]);
+    return true;
+  }
+
+  /**
+   * Returns the handle with highest priority, but does not pop it.
+   */
+  public int peek() {
+    if (size > 0)
+      return heap[0];
+    throw new NoSuchElementException();
+  }
+
+  /**
+   * Gets the priority of the highest-priority handle.
+   */
+  public double getPriority() {
+    return priorities[peek()];
+  }
+
+  /**
+   * Gets the priority of a handle, which must be queued.
+   */
+  public double getPriority(int handle) {
+    if (!contains(handle))
+      throw new NoSuchElementException("Handle not queued: " + handle);
+    return priorities[handle];
+  }
+
+  /**
+   * Removes and returns the handle with highest priority.
+   */
+  public int pop() {
+    int first = peek();
+    size--;
+    positions[first] = -1;
+    if (size > 0) {
+      heap[0] = heap[size];
+      siftDown(0);
+    }
+    return first;
+  }
+
+  /**
+   * Number of handles in the queue.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * True if the queue is empty (size == 0).
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Empties the queue in time proportional to its current size.
+   */
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      positions[heap[i]] = -1;
+    }
+    size = 0;
+  }
+
+  public IndexedPriorityQueue(int capacity) {
+    heap = new int[0];
+    positions = new int[0];
+    priorities = new double[0];
+    ensureCapacity(capacity);
+  }
+
+  public static void main(String[] args) {
+    IndexedPriorityQueue pq = new IndexedPriorityQueue(4);
+    pq.add(0, 1);
+    pq.add(1, 3);
+    pq.add(2, 2);
+    pq.promote(0, 5);
+    pq.changePriority(1, 0.5);
+    while (! pq.isEmpty()) {
+      double priority = pq.getPriority();
+      System.out.println(pq.pop() + " : " + priority);
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package cs224n.util;
+
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A map from ints to doubles, like Counter but without boxing either side.
+ * Keys not in the counter have a count of zero.  By default the counter
+ * is an open-addressing hash table over parallel int[] and double[]
+ * arrays; the IntCounter(int) constructor instead makes a dense counter,
+ * whose arrays are indexed by the key itself and which suits small key
+ * spaces such as the ids of an Index.  Dense counters only take
+ * non-negative keys, and grow to fit the largest one.
+ */
+public class IntCounter implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final int INITIAL_CAPACITY = 4;
+
+  final boolean dense;
+  int[] keys;
+  double[] values;
+  boolean[] used;
+  int size;
+
+  /**
+   * Returns the slot holding the key, or the empty slot where it would go.
+   */
+  private int find(int key) {
+    if (dense)
+      return key;
+    int mask = keys.length - 1;
+    int h = key * 0x9E3779B9;
+    int slot = (h ^ (h >>> 16)) & mask;
+    while (used[slot] && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private boolean present(int slot) {
+    return slot < used.length && used[slot];
+  }
+
+  /* Returns the slot for a key, claiming one and growing as needed. */
+  private int ensure(int key) {
+    if (dense) {
+      if (key >= used.length)
+        grow(Math.max(key + 1, 2 * used.length));
+    } else if (2 * (size + 1) > keys.length) {
+      grow(2 * keys.length);
+    }
+    int slot = find(key);
+    if (!used[slot]) {
+      used[slot] = true;
+      if (!dense)
+        keys[slot] = key;
+      values[slot] = 0.0;
+      size++;
+    }
+    return slot;
+  }
+
+  private void grow(int newCapacity) {
+    int[] oldKeys = keys;
+    double[] oldValues = values;
+    boolean[] oldUsed = used;
+    values = new double[newCapacity];
+    used = new boolean[newCapacity];
+    if (dense) {
+      System.arraycopy(oldValues, 0, values, 0, oldValues.length);
+      System.arraycopy(oldUsed, 0, used, 0, oldUsed.length);
+      return;
+    }
+    keys = new int[newCapacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldUsed[i]) {
+        int slot = find(oldKeys[i]);
+        used[slot] = true;
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private int keyAt(int slot) {
+    return (dense ? slot : keys[slot]);
+  }
+
+  /**
+   * Iterates over the keys in the counter, without boxing.
+   */
+  public PrimitiveIterator.OfInt keySet() {
+    return new PrimitiveIterator.OfInt() {
+      int slot = nextSlot(0);
+
+      private int nextSlot(int from) {
+        while (from < used.length && !used[from])
+          from++;
+        return from;
+      }
+
+      public boolean hasNext() {
+        return slot < used.length;
+      }
+
+      public int nextInt() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        int key = keyAt(slot);
+        slot = nextSlot(slot + 1);
+        return key;
+      }
+    };
+  }
+
+  /**
+   * The number of entries in the counter (not the total count -- use totalCount() instead).
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * True if there are no entries in the counter (false does not mean totalCount > 0)
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Returns whether the counter contains the given key, as for Counter.
+   */
+  public boolean containsKey(int key) {
+    return (key >= 0 || !dense) && present(find(key));
+  }
+
+  /**
+   * Get the count of the element, or zero if the element is not in the
+   * counter.
+   */
+  public double getCount(int key) {
+    if (key < 0 && dense)
+      return 0.0;
+    int slot = find(key);
+    return (present(slot) ? values[slot] : 0.0);
+  }
+
+  /**
+   * Set the count for the given key, clobbering any previous count.
+   */
+  public void setCount(int key, double count) {
+    int slot = ensure(key);
+    values[slot] = count;
+  }
+
+  /**
+   * Increment a key's count by the given amount.
+   */
+  public void incrementCount(int key, double increment) {
+    int slot = ensure(key);
+    values[slot] += increment;
+  }
+
+  public void incrementAll(IntCounter counter) {
+    for (int slot = 0; slot < counter.used.length; slot++) {
+      if (counter.used[slot])
+        incrementCount(counter.keyAt(slot), counter.values[slot]);
+    }
+  }
+
+  /**
+   * Finds the total of all counts in the counter.  This implementation iterates
+   * through the entire counter every time this method is called.
+   */
+  public double totalCount() {
+    double total = 0.0;
+    for (int slot = 0; slot < used.length; slot++) {
+      if (used[slot])
+        total += values[slot];
+    }
+    return total;
+  }
+
+  /**
+   * Finds the key with maximum count, or -1 if the counter is empty.  This
+   * is a linear operation; ties go to the first key found.
+   */
+  public int argMax() {
+    int maxSlot = -1;
+    for (int slot = 0; slot < used.length; slot++) {
+      if (used[slot] && (maxSlot < 0 || values[slot] > values[maxSlot]))
+        maxSlot = slot;
+    }
+    return (maxSlot < 0 ? -1 : keyAt(maxSlot));
+  }
+
+  /**
+   * Builds a priority queue whose elements are the counter's keys, and
+   * whose priorities are those keys' counts in the counter.
+   */
+  public PriorityQueue<Integer> asPriorityQueue() {
+    PriorityQueue<Integer> pq = new PriorityQueue<Integer>(size);
+    for (int slot = 0; slot < used.length; slot++) {
+      if (used[slot])
+        pq.add(keyAt(slot), values[slot]);
+    }
+    return pq;
+  }
+
+  /**
+   * Returns a string representation with the keys ordered by decreasing
+   * counts.
+   */
+  public String toString() {
+    return asPriorityQueue().toString(size);
+  }
+
+  public IntCounter() {
+    dense = false;
+    keys = new int[INITIAL_CAPACITY];
+    values = new double[INITIAL_CAPACITY];
+    used = new boolean[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Makes a dense counter with room for keys 0 to numKeys - 1.
+   */
+  public IntCounter(int numKeys) {
+    dense = true;
+    values = new double[numKeys];
+    used = new boolean[numKeys];
+  }
+
+  public static void main(String[] args) {
+    IntCounter counter = new IntCounter();
+    counter.incrementCount(7, 7);
+    counter.incrementCount(7, 1);
+    counter.setCount(-3, 1);
+    counter.setCount(1000000, 0);
+    System.out.println(counter + " total " + counter.totalCount()
+                       + " argMax " + counter.argMax());
+    IntCounter dense = new IntCounter(2);
+    dense.incrementCount(7, 2);
+    dense.setCount(1, 0);
+    System.out.println(dense + " " + dense.containsKey(5) + " " + dense.getCount(-1));
+  }
+}
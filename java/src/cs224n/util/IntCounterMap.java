@@ -0,0 +1,164 @@
+package cs224n.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Maintains counts of (key, value) pairs of ints, like CounterMap.  Keys
+ * are expected to be small non-negative ids (from an Index, say) and index
+ * an array of IntCounters directly; the sub-counters are hash-based, or
+ * dense if the map is built with a number of values.
+ */
+public class IntCounterMap implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final int numValues;
+  private IntCounter[] counters = new IntCounter[16];
+  private int size;
+
+  protected IntCounter ensureCounter(int key) {
+    if (key >= counters.length)
+      counters = Arrays.copyOf(counters, Math.max(key + 1, 2 * counters.length));
+    IntCounter valueCounter = counters[key];
+    if (valueCounter == null) {
+      valueCounter = (numValues > 0 ? new IntCounter(numValues) : new IntCounter());
+      counters[key] = valueCounter;
+      size++;
+    }
+    return valueCounter;
+  }
+
+  /**
+   * Iterates over the keys that have been inserted into this IntCounterMap.
+   */
+  public PrimitiveIterator.OfInt keySet() {
+    return new PrimitiveIterator.OfInt() {
+      int key = nextKey(0);
+
+      private int nextKey(int from) {
+        while (from < counters.length && counters[from] == null)
+          from++;
+        return from;
+      }
+
+      public boolean hasNext() {
+        return key < counters.length;
+      }
+
+      public int nextInt() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        int current = key;
+        key = nextKey(key + 1);
+        return current;
+      }
+    };
+  }
+
+  /**
+   * Sets the count for a particular (key, value) pair.
+   */
+  public void setCount(int key, int value, double count) {
+    ensureCounter(key).setCount(value, count);
+  }
+
+  /**
+   * Increments the count for a particular (key, value) pair.
+   */
+  public void incrementCount(int key, int value, double count) {
+    ensureCounter(key).incrementCount(value, count);
+  }
+
+  /**
+   * Gets the count of the given (key, value) entry, or zero if that
+   * entry is not present.  Does not create any objects.
+   */
+  public double getCount(int key, int value) {
+    if (!containsKey(key))
+      return 0.0;
+    return counters[key].getCount(value);
+  }
+
+  public boolean containsKey(int key) {
+    return key >= 0 && key < counters.length && counters[key] != null;
+  }
+
+  /**
+   * Gets the sub-counter for the given key, creating and installing an
+   * empty one if there is none, as CounterMap.getCounter() does.
+   */
+  public IntCounter getCounter(int key) {
+    return ensureCounter(key);
+  }
+
+  /**
+   * Returns the total of all counts in sub-counters.  This
+   * implementation is linear; it recalculates the total each time.
+   */
+  public double totalCount() {
+    double total = 0.0;
+    for (IntCounter counter : counters) {
+      if (counter != null)
+        total += counter.totalCount();
+    }
+    return total;
+  }
+
+  /**
+   * Returns the total number of (key, value) entries in the
+   * IntCounterMap (not their total counts).
+   */
+  public int totalSize() {
+    int total = 0;
+    for (IntCounter counter : counters) {
+      if (counter != null)
+        total += counter.size();
+    }
+    return total;
+  }
+
+  /**
+   * The number of keys in this IntCounterMap (not the number of
+   * key-value entries -- use totalSize() for that)
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * True if there are no entries in the IntCounterMap (false does not
+   * mean totalCount > 0)
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[\n");
+    for (int key = 0; key < counters.length; key++) {
+      if (counters[key] == null)
+        continue;
+      sb.append("  ");
+      sb.append(key);
+      sb.append(" -> ");
+      sb.append(counters[key]);
+      sb.append("\n");
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  public IntCounterMap() {
+    this(0);
+  }
+
+  /**
+   * Makes dense sub-counters with room for values 0 to numValues - 1, or
+   * hash-based ones if numValues is zero.
+   */
+  public IntCounterMap(int numValues) {
+    this.numValues = numValues;
+  }
+}
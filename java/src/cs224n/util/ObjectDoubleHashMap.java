@@ -0,0 +1,183 @@
+package cs224n.util;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An open-addressing hash table from objects to primitive doubles, used as
+ * the default backing store of Counter.  Keys live in an Object[] with
+ * linear probing and their values in a parallel double[], so a lookup or
+ * an increment is a single probe sequence and allocates nothing once the
+ * table has grown.  Null keys are stored under a private sentinel.
+ * Entries cannot be removed.
+ */
+class ObjectDoubleHashMap<E> implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private enum NullKey { INSTANCE }
+  private static final Object NULL_KEY = NullKey.INSTANCE;
+  private static final int INITIAL_CAPACITY = 8;
+
+  Object[] keys;
+  double[] values;
+  int size;
+
+  /**
+   * Returns the slot holding the key, or the empty slot where it would go.
+   */
+  private int find(Object key) {
+    int mask = keys.length - 1;
+    int h = key.hashCode();
+    int slot = (h ^ (h >>> 16)) & mask;
+    while (true) {
+      Object slotKey = keys[slot];
+      if (slotKey == null || slotKey == key || slotKey.equals(key))
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private static Object mask(Object key) {
+    return (key == null ? NULL_KEY : key);
+  }
+
+  /**
+   * The key stored in a slot, or null for an empty slot.  Use occupied() to
+   * tell an empty slot from the null key.
+   */
+  @SuppressWarnings("unchecked")
+  E keyAt(int slot) {
+    Object key = keys[slot];
+    return (key == NULL_KEY ? null : (E) key);
+  }
+
+  boolean occupied(int slot) {
+    return keys[slot] != null;
+  }
+
+  int capacity() {
+    return keys.length;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean containsKey(Object key) {
+    return keys[find(mask(key))] != null;
+  }
+
+  /**
+   * The value for the key, or zero if the key is not present.
+   */
+  public double get(Object key) {
+    int slot = find(mask(key));
+    return (keys[slot] == null ? 0.0 : values[slot]);
+  }
+
+  /**
+   * Sets the key's value, returning the old value (zero if absent).
+   */
+  public double put(E key, double value) {
+    Object masked = mask(key);
+    int slot = find(masked);
+    if (keys[slot] == null) {
+      slot = insert(masked, slot);
+    }
+    double oldValue = values[slot];
+    values[slot] = value;
+    return oldValue;
+  }
+
+  /**
+   * Adds to the key's value, inserting it with the increment if absent,
+   * and returns the new value.
+   */
+  public double add(E key, double increment) {
+    Object masked = mask(key);
+    int slot = find(masked);
+    if (keys[slot] == null) {
+      slot = insert(masked, slot);
+    }
+    return (values[slot] += increment);
+  }
+
+  /* Claims an empty slot for a new key, growing the table to keep the load
+   * at most one half, and returns the key's (possibly new) slot. */
+  private int insert(Object key, int slot) {
+    if (2 * (size + 1) > keys.length) {
+      rehash(2 * keys.length);
+      slot = find(key);
+    }
+    keys[slot] = key;
+    values[slot] = 0.0;
+    size++;
+    return slot;
+  }
+
+  private void rehash(int newCapacity) {
+    Object[] oldKeys = keys;
+    double[] oldValues = values;
+    keys = new Object[newCapacity];
+    values = new double[newCapacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  /**
+   * A read-only view of the keys.
+   */
+  public Set<E> keySet() {
+    return new AbstractSet<E>() {
+      public Iterator<E> iterator() {
+        return new KeyIterator();
+      }
+
+      public int size() {
+        return size;
+      }
+
+      public boolean contains(Object o) {
+        return containsKey(o);
+      }
+    };
+  }
+
+  private class KeyIterator implements Iterator<E> {
+    int slot = nextSlot(0);
+
+    private int nextSlot(int from) {
+      while (from < keys.length && keys[from] == null)
+        from++;
+      return from;
+    }
+
+    public boolean hasNext() {
+      return slot < keys.length;
+    }
+
+    public E next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      E key = keyAt(slot);
+      slot = nextSlot(slot + 1);
+      return key;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  public ObjectDoubleHashMap() {
+    keys = new Object[INITIAL_CAPACITY];
+    values = new double[INITIAL_CAPACITY];
+  }
+}
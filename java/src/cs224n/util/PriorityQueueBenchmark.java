@@ -0,0 +1,104 @@
+package cs224n.util;
+
+import java.util.Random;
+
+/**
+ * Compares PriorityQueue and IndexedPriorityQueue on an agenda-style
+ * workload: handles are pushed, promoted to higher priorities several
+ * times, and popped best-first.  PriorityQueue has no decrease-key, so
+ * it pushes a duplicate on every promotion and skips stale entries when
+ * they are popped, the way the A* parser used to.
+ *
+ * Usage: java cs224n.util.PriorityQueueBenchmark [numHandles] [numRounds]
+ */
+public class PriorityQueueBenchmark {
+
+  /* Each round pushes every handle, promotes random handles, and pops
+   * until empty.  Returns a checksum of the pop order. */
+  static long runBoxed(int[] promotions, double[] priorities, int numHandles) {
+    double[] best = new double[numHandles];
+    boolean[] done = new boolean[numHandles];
+    PriorityQueue<Integer> queue = new PriorityQueue<Integer>();
+    for (int handle = 0; handle < numHandles; handle++) {
+      best[handle] = priorities[handle];
+      queue.add(handle, best[handle]);
+    }
+    for (int i = 0; i < promotions.length; i++) {
+      int handle = promotions[i];
+      best[handle] += 1.0;
+      queue.add(handle, best[handle]);
+    }
+    long checksum = 0;
+    int popped = 0;
+    while (queue.hasNext()) {
+      int handle = queue.next();
+      if (done[handle])
+        continue;
+      done[handle] = true;
+      checksum = checksum * 31 + handle;
+      popped++;
+    }
+    return checksum + popped;
+  }
+
+  static long runIndexed(IndexedPriorityQueue queue, int[] promotions, double[] priorities,
+                         int numHandles) {
+    queue.clear();
+    for (int handle = 0; handle < numHandles; handle++) {
+      queue.add(handle, priorities[handle]);
+    }
+    for (int i = 0; i < promotions.length; i++) {
+      int handle = promotions[i];
+      queue.promote(handle, queue.getPriority(handle) + 1.0);
+    }
+    long checksum = 0;
+    int popped = 0;
+    while (!queue.isEmpty()) {
+      int handle = queue.pop();
+      checksum = checksum * 31 + handle;
+      popped++;
+    }
+    return checksum + popped;
+  }
+
+  public static void main(String[] args) {
+    int numHandles = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int numRounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    Random random = new Random(1);
+    double[] priorities = new double[numHandles];
+    for (int i = 0; i < numHandles; i++) {
+      priorities[i] = -1000.0 * random.nextDouble();
+    }
+    int[] promotions = new int[3 * numHandles];
+    for (int i = 0; i < promotions.length; i++) {
+      promotions[i] = random.nextInt(numHandles);
+    }
+    int numOps = numHandles * 2 + promotions.length;
+    IndexedPriorityQueue indexed = new IndexedPriorityQueue(numHandles);
+
+    // one untimed round each to warm up the JIT
+    long boxedChecksum = runBoxed(promotions, priorities, numHandles);
+    long indexedChecksum = runIndexed(indexed, promotions, priorities, numHandles);
+
+    long boxedTime = 0;
+    long indexedTime = 0;
+    for (int round = 0; round < numRounds; round++) {
+      long start = System.nanoTime();
+      boxedChecksum ^= runBoxed(promotions, priorities, numHandles);
+      boxedTime += System.nanoTime() - start;
+      start = System.nanoTime();
+      indexedChecksum ^= runIndexed(indexed, promotions, priorities, numHandles);
+      indexedTime += System.nanoTime() - start;
+    }
+    System.out.println("Handles: " + numHandles + ", promotions: " + promotions.length
+                       + ", rounds: " + numRounds);
+    report("PriorityQueue", boxedTime, numOps * (long) numRounds);
+    report("IndexedPriorityQueue", indexedTime, numOps * (long) numRounds);
+    System.out.println("Same pop order: " + (boxedChecksum == indexedChecksum));
+  }
+
+  private static void report(String name, long nanos, long numOps) {
+    System.out.printf("%-22s %8.1f ms  (%.1f ns/op)%n", name, nanos / 1e6,
+                      (double) nanos / numOps);
+  }
+}
@@ -0,0 +1,178 @@
+package cs224n.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Canonicalizes strings, like Interner&lt;String&gt;, but can also look a
+ * string up by a range of a char array or byte buffer.  A tokenizer can
+ * then find the canonical copy of a token without first building a
+ * String for it; a new String is only made the first time a token is
+ * seen.  The table is
+ * open-addressing with linear probing, hashed as String.hashCode() hashes.
+ * Unlike String.intern(), the canonical strings belong to this interner
+ * and are collected with it.  Not thread-safe.
+ */
+public class StringInterner {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private String[] strings = new String[INITIAL_CAPACITY];
+  /* The hash of each slot's string, so that probing past other strings
+   * does not have to touch them. */
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private int size;
+
+  private static int hash(char[] chars, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + chars[i];
+    }
+    return h;
+  }
+
+  private static boolean matches(String string, char[] chars, int start, int end) {
+    if (string.length() != end - start)
+      return false;
+    for (int i = start; i < end; i++) {
+      if (string.charAt(i - start) != chars[i])
+        return false;
+    }
+    return true;
+  }
+
+  /* Similar tokens have nearby String hashes, so spread them before
+   * probing linearly. */
+  private int slot(int h) {
+    h *= 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (strings.length - 1);
+  }
+
+  /**
+   * Returns the canonical string with the characters chars[start..end).
+   */
+  public String intern(char[] chars, int start, int end) {
+    int h = hash(chars, start, end);
+    int mask = strings.length - 1;
+    int slot = slot(h);
+    for (String string = strings[slot]; string != null; string = strings[slot]) {
+      if (hashes[slot] == h && matches(string, chars, start, end))
+        return string;
+      slot = (slot + 1) & mask;
+    }
+    return insert(new String(chars, start, end - start), slot);
+  }
+
+  /**
+   * Returns the canonical string for the bytes at absolute indexes
+   * start..end of the buffer, which may be direct or memory-mapped; its
+   * position and limit are not used or moved.  ASCII bytes are looked up
+   * without decoding or copying; a range with any other byte is decoded
+   * as UTF-8 first.
+   */
+  public String intern(ByteBuffer bytes, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      byte b = bytes.get(i);
+      if (b < 0)
+        return intern(new String(copy(bytes, start, end), StandardCharsets.UTF_8));
+      h = 31 * h + b;
+    }
+    int mask = strings.length - 1;
+    int slot = slot(h);
+    for (String string = strings[slot]; string != null; string = strings[slot]) {
+      if (hashes[slot] == h && matches(string, bytes, start, end))
+        return string;
+      slot = (slot + 1) & mask;
+    }
+    return insert(new String(copy(bytes, start, end), StandardCharsets.ISO_8859_1), slot);
+  }
+
+  private static byte[] copy(ByteBuffer bytes, int start, int end) {
+    byte[] copy = new byte[end - start];
+    for (int i = start; i < end; i++) {
+      copy[i - start] = bytes.get(i);
+    }
+    return copy;
+  }
+
+  private static boolean matches(String string, ByteBuffer bytes, int start, int end) {
+    if (string.length() != end - start)
+      return false;
+    for (int i = start; i < end; i++) {
+      if (string.charAt(i - start) != bytes.get(i))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the canonical string equal to the given one.
+   */
+  public String intern(String string) {
+    int mask = strings.length - 1;
+    int slot = slot(string.hashCode());
+    for (String canonical = strings[slot]; canonical != null; canonical = strings[slot]) {
+      if (hashes[slot] == string.hashCode() && canonical.equals(string))
+        return canonical;
+      slot = (slot + 1) & mask;
+    }
+    return insert(string, slot);
+  }
+
+  /* Stores a new string in an empty slot, growing the table to keep the
+   * load at most one half. */
+  private String insert(String string, int slot) {
+    if (2 * (size + 1) > strings.length) {
+      String[] oldStrings = strings;
+      int[] oldHashes = hashes;
+      strings = new String[2 * oldStrings.length];
+      hashes = new int[2 * oldStrings.length];
+      for (int i = 0; i < oldStrings.length; i++) {
+        if (oldStrings[i] != null) {
+          int newSlot = emptySlot(oldHashes[i]);
+          strings[newSlot] = oldStrings[i];
+          hashes[newSlot] = oldHashes[i];
+        }
+      }
+      slot = emptySlot(string.hashCode());
+    }
+    strings[slot] = string;
+    hashes[slot] = string.hashCode();
+    size++;
+    return string;
+  }
+
+  private int emptySlot(int h) {
+    int mask = strings.length - 1;
+    int slot = slot(h);
+    while (strings[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * The number of distinct strings interned.
+   */
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    Arrays.fill(strings, null);
+    size = 0;
+  }
+
+  public static void main(String[] args) {
+    StringInterner interner = new StringInterner();
+    char[] chars = "(NP (DT the) (NN the))".toCharArray();
+    String first = interner.intern(chars, 8, 11);
+    String second = interner.intern(chars, 17, 20);
+    System.out.println(first + " " + (first == second) + " "
+                       + (interner.intern(new String("the")) == first) + " " + interner.size());
+    ByteBuffer bytes = ByteBuffer.wrap("the caf\u00e9".getBytes(StandardCharsets.UTF_8));
+    System.out.println((interner.intern(bytes, 0, 3) == first) + " "
+                       + interner.intern(bytes, 4, bytes.limit()).length());
+  }
+}
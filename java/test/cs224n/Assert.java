@@ -0,0 +1,47 @@
+package cs224n;
+
+import java.io.File;
+
+/**
+ * Assertions for the tests run by TestRunner.
+ */
+public class Assert {
+
+  public static void assertTrue(String message, boolean condition) {
+    if (!condition)
+      throw new AssertionError(message);
+  }
+
+  public static void assertEquals(String message, Object expected, Object actual) {
+    if (expected == null ? actual != null : !expected.equals(actual))
+      throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+  }
+
+  public static void assertEquals(String message, long expected, long actual) {
+    if (expected != actual)
+      throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+  }
+
+  /* Doubles are equal within tolerance, and infinities equal only
+   * themselves. */
+  public static void assertEquals(String message, double expected, double actual,
+                                  double tolerance) {
+    if (expected == actual)
+      return;
+    if (Double.isNaN(expected) || Double.isNaN(actual)
+        || Math.abs(expected - actual) > tolerance)
+      throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+  }
+
+  /**
+   * The directory holding the miniTest and treebank data sets, from the
+   * cs224n.data system property, or null if it is not set or missing.
+   * Tests that need data return early without it.
+   */
+  public static File dataDirectory() {
+    String path = System.getProperty("cs224n.data");
+    if (path == null || !new File(path, "miniTest").isDirectory())
+      return null;
+    return new File(path);
+  }
+}
@@ -0,0 +1,77 @@
+package cs224n;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the tests under a directory of compiled test classes: every
+ * public static no-argument method whose name starts with "test", in
+ * every class whose name ends with "Test".  A test passes if it
+ * returns and fails if it throws; the runner exits with status 1 if any
+ * test failed.
+ *
+ * Usage: java cs224n.TestRunner testClassesDir [ClassNameSubstring]
+ */
+public class TestRunner {
+
+  public static void main(String[] args) throws Exception {
+    File root = new File(args[0]);
+    String filter = (args.length > 1 ? args[1] : "");
+    List<String> classNames = new ArrayList<String>();
+    findTestClasses(root, "", classNames);
+    Collections.sort(classNames);
+    int numPassed = 0;
+    int numFailed = 0;
+    for (String className : classNames) {
+      if (!className.contains(filter))
+        continue;
+      List<Method> tests = new ArrayList<Method>();
+      for (Method method : Class.forName(className).getMethods()) {
+        if (method.getName().startsWith("test") && method.getParameterTypes().length == 0
+            && Modifier.isStatic(method.getModifiers()))
+          tests.add(method);
+      }
+      Collections.sort(tests, new Comparator<Method>() {
+        public int compare(Method a, Method b) {
+          return a.getName().compareTo(b.getName());
+        }
+      });
+      for (Method test : tests) {
+        String name = className + "." + test.getName();
+        long start = System.nanoTime();
+        try {
+          test.invoke(null);
+          numPassed++;
+          System.out.printf("PASS %s (%.0f ms)%n", name, (System.nanoTime() - start) / 1e6);
+        } catch (InvocationTargetException e) {
+          numFailed++;
+          System.out.println("FAIL " + name);
+          e.getCause().printStackTrace(System.out);
+        }
+      }
+    }
+    System.out.println(numPassed + " passed, " + numFailed + " failed");
+    if (numFailed > 0)
+      System.exit(1);
+  }
+
+  private static void findTestClasses(File dir, String packagePrefix, List<String> classNames) {
+    File[] files = dir.listFiles();
+    if (files == null)
+      return;
+    for (File file : files) {
+      String name = file.getName();
+      if (file.isDirectory()) {
+        findTestClasses(file, packagePrefix + name + ".", classNames);
+      } else if (name.endsWith("Test.class")) {
+        classNames.add(packagePrefix + name.substring(0, name.length() - ".class".length()));
+      }
+    }
+  }
+}
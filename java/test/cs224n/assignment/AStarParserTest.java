@@ -0,0 +1,54 @@
+package cs224n.assignment;
+
+import static cs224n.Assert.*;
+
+import cs224n.ling.Tree;
+
+import java.util.List;
+
+public class AStarParserTest {
+
+  /* A* stops at the first ROOT it pops, which must carry the exhaustive
+   * CKY parser's best score. */
+  static void checkAgainstCKY(List<Tree<String>> trainTrees, List<List<String>> sentences) {
+    PCFGParser cky = new PCFGParser();
+    cky.train(trainTrees);
+    AStarParser astar = new AStarParser();
+    astar.train(trainTrees);
+    int numParsed = 0;
+    for (List<String> sentence : sentences) {
+      double expected = cky.getBestScore(sentence);
+      assertEquals("best score of " + sentence, expected, astar.getBestScore(sentence), 1e-8);
+      assertEquals("yield", sentence, astar.getBestParse(sentence).getYield());
+      if (expected > Double.NEGATIVE_INFINITY)
+        numParsed++;
+    }
+    assertTrue("no sentence had a parse", numParsed > 0);
+  }
+
+  public static void testMatchesCKYOnHandWrittenTreebank() {
+    checkAgainstCKY(TestTrees.handWritten(), TestTrees.sentences());
+  }
+
+  public static void testMatchesCKYOnMiniTest() {
+    List<Tree<String>> trainTrees = TestTrees.miniTest(1, 3);
+    if (trainTrees == null)
+      return;
+    checkAgainstCKY(trainTrees, TestTrees.yields(TestTrees.miniTest(4, 4), 25));
+  }
+
+  /* Every edge A* makes final is a chart entry CKY builds too. */
+  public static void testPopsNoMoreEdgesThanCKYBuilds() {
+    List<Tree<String>> trainTrees = TestTrees.handWritten();
+    PCFGParser cky = new PCFGParser();
+    cky.train(trainTrees);
+    AStarParser astar = new AStarParser();
+    astar.train(trainTrees);
+    for (List<String> sentence : TestTrees.sentences()) {
+      cky.getBestParse(sentence);
+      astar.getBestParse(sentence);
+    }
+    assertTrue("popped " + astar.getEdgesPopped() + " of " + cky.getEdgesBuilt(),
+               astar.getEdgesPopped() <= cky.getEdgesBuilt());
+  }
+}
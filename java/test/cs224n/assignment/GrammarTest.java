@@ -0,0 +1,31 @@
+package cs224n.assignment;
+
+import static cs224n.Assert.*;
+
+import cs224n.ling.Tree;
+
+import java.util.List;
+
+public class GrammarTest {
+
+  /* Counting on one thread, on several sharing a SharedTally, or from
+   * a stream estimates exactly the same rules. */
+  static void checkTallies(List<Tree<String>> trainTrees) {
+    List<Tree<String>> annotatedTrees = PCFGParserTest.annotate(trainTrees);
+    String expected = new Grammar(annotatedTrees).toString();
+    assertTrue("grammar has rules", expected.length() > 0);
+    assertEquals("sharded grammar", expected, new Grammar(annotatedTrees, 4).toString());
+    assertEquals("streamed grammar", expected, new Grammar(annotatedTrees.iterator()).toString());
+  }
+
+  public static void testTalliesAgreeOnHandWrittenTreebank() {
+    checkTallies(TestTrees.handWritten());
+  }
+
+  public static void testTalliesAgreeOnMiniTest() {
+    List<Tree<String>> trainTrees = TestTrees.miniTest(1, 4);
+    if (trainTrees == null)
+      return;
+    checkTallies(trainTrees);
+  }
+}
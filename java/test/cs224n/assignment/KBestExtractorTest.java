@@ -0,0 +1,68 @@
+package cs224n.assignment;
+
+import static cs224n.Assert.*;
+
+import cs224n.ling.Tree;
+
+import java.util.List;
+
+public class KBestExtractorTest {
+
+  /* The closure's parent index lists every entry exactly once, under
+   * its parent and in child order. */
+  public static void testClosureIndexedByParent() {
+    CompiledGrammar grammar = new Grammar(PCFGParserTest.annotate(TestTrees.handWritten())).compile();
+    CompiledGrammar.UnaryClosure closure = grammar.unaryClosureByChild;
+    boolean[] listed = new boolean[closure.parent.length];
+    for (int parent = 0; parent < grammar.numSymbols(); parent++) {
+      int lastChild = -1;
+      for (int i = closure.parentStart(parent); i < closure.parentEnd(parent); i++) {
+        int r = closure.byParent[i];
+        assertEquals("parent of entry " + r, parent, closure.parent[r]);
+        assertTrue("child order", closure.child[r] > lastChild);
+        assertTrue("listed once", !listed[r]);
+        listed[r] = true;
+        lastChild = closure.child[r];
+      }
+    }
+    for (int r = 0; r < listed.length; r++) {
+      assertTrue("entry " + r + " listed", listed[r]);
+    }
+  }
+
+  /* The lazy extractor finds exactly the brute-force k best scores, best
+   * first, and its best parse is the Viterbi parse. */
+  public static void testMatchesBruteForceOnHandWrittenTreebank() {
+    List<Tree<String>> trainTrees = TestTrees.handWritten();
+    PCFGParser parser = new PCFGParser();
+    parser.train(trainTrees);
+    List<Tree<String>> annotatedTrees = PCFGParserTest.annotate(trainTrees);
+    CompiledGrammar grammar = new Grammar(annotatedTrees).compile();
+    Lexicon lexicon = new Lexicon(annotatedTrees);
+    int k = 25;
+    int numWithSeveral = 0;
+    for (List<String> sentence : TestTrees.sentences()) {
+      List<Double> expected = ReferenceKBest.bestScores(grammar, lexicon, sentence, k);
+      double[] actual = parser.getKBestScores(sentence, k);
+      assertEquals("number of parses of " + sentence, expected.size(), actual.length);
+      for (int rank = 0; rank < actual.length; rank++) {
+        assertEquals("score " + rank + " of " + sentence, expected.get(rank), actual[rank], 1e-8);
+        if (rank > 0)
+          assertTrue("non-increasing", actual[rank] <= actual[rank - 1]);
+      }
+      if (actual.length > 1)
+        numWithSeveral++;
+      if (actual.length > 0) {
+        assertEquals("best score", parser.getBestScore(sentence), actual[0], 1e-8);
+        List<Tree<String>> parses = parser.getKBestParses(sentence, k);
+        assertEquals("parses", actual.length, parses.size());
+        assertEquals("best parse", parser.getBestParse(sentence).toString(),
+                     parses.get(0).toString());
+        for (Tree<String> parse : parses) {
+          assertEquals("yield", sentence, parse.getYield());
+        }
+      }
+    }
+    assertTrue("some sentence had several parses", numWithSeveral > 0);
+  }
+}
@@ -0,0 +1,129 @@
+package cs224n.assignment;
+
+import static cs224n.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LexiconTest {
+
+  static Lexicon handWrittenLexicon() {
+    return new Lexicon(PCFGParserTest.annotate(TestTrees.handWritten()));
+  }
+
+  /* Unknown words share the frozen vector of their signature, or the
+   * unknown-word vector if the signature was never seen. */
+  public static void testUnknownWordsShareTheirSignatureVector() {
+    Lexicon lexicon = handWrittenLexicon();
+    String first = "zorbled";
+    String second = "quibbled";
+    assertEquals("same signature", Lexicon.getSignature(first), Lexicon.getSignature(second));
+    int signatureId = lexicon.signatureIndex.indexOf(Lexicon.getSignature(first));
+    double[] expected = (signatureId < 0 ? lexicon.unknownLogScores
+                         : lexicon.signatureLogScores[signatureId]);
+    assertTrue("first word", lexicon.getLogScores(first) == expected);
+    assertTrue("second word", lexicon.getLogScores(second) == expected);
+    assertTrue("signature not in training", !lexicon.signatureIndex.contains("UNK-CAPS-NUM-DASH"));
+    assertTrue("unseen signature", lexicon.getLogScores("XQ-77") == lexicon.unknownLogScores);
+  }
+
+  /* A one-slot cache keeps only the last word, and never hands one
+   * word's vector to another that lands in the same slot. */
+  public static void testWordCacheKeepsOneWordPerSlot() {
+    Lexicon.WordCache cache = new Lexicon.WordCache(1);
+    double[] first = new double[1];
+    double[] second = new double[1];
+    cache.put("first", first);
+    assertTrue("cached", cache.get("first") == first);
+    cache.put("second", second);
+    assertTrue("evicted", cache.get("first") == null);
+    assertTrue("replaced", cache.get("second") == second);
+    cache.clear();
+    assertTrue("cleared", cache.get("second") == null);
+  }
+
+  /* Suffixes are matched on a root-locale lower case, so a dotted or
+   * dotless I does not change the signature. */
+  public static void testSignatureIgnoresDefaultLocale() {
+    Locale saved = Locale.getDefault();
+    String expected = Lexicon.getSignature("ParsINg");
+    try {
+      Locale.setDefault(new Locale("tr", "TR"));
+      assertEquals("turkish locale", expected, Lexicon.getSignature("ParsINg"));
+    } finally {
+      Locale.setDefault(saved);
+    }
+    assertEquals("suffix", "UNK-INITC-ing", expected);
+  }
+
+  /* Lookups from several threads at once see the same vectors as a
+   * single thread does. */
+  public static void testConcurrentLookupsAgree() throws InterruptedException {
+    final Lexicon lexicon = handWrittenLexicon();
+    final List<String> words = new ArrayList<String>();
+    for (List<String> sentence : TestTrees.sentences()) {
+      words.addAll(sentence);
+    }
+    for (int i = 0; i < 200; i++) {
+      words.add("unseen" + i + (i % 3 == 0 ? "ing" : i % 3 == 1 ? "-X" : "s"));
+    }
+    final List<double[]> expected = new ArrayList<double[]>();
+    for (String word : words) {
+      expected.add(lexicon.getLogScores(word));
+    }
+    final AtomicInteger mismatches = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      threads.add(new Thread() {
+        public void run() {
+          for (int pass = 0; pass < 50; pass++) {
+            for (int i = 0; i < words.size(); i++) {
+              if (lexicon.getLogScores(words.get(i)) != expected.get(i))
+                mismatches.incrementAndGet();
+            }
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals("mismatched lookups", 0, mismatches.get());
+  }
+
+  /* The precomputed dictionary gives each word the tags seen with it,
+   * plus, for rare and unknown words, the first open-class tags not
+   * already among them. */
+  public static void testTagDictionaryMatchesItsDefinition() {
+    Lexicon lexicon = handWrittenLexicon();
+    List<String> words = new ArrayList<String>(lexicon.wordIndex);
+    words.add("unseen-word");
+    for (int numOpen = 0; numOpen <= 4; numOpen++) {
+      for (String word : words) {
+        int wordId = lexicon.wordIndex.indexOf(word);
+        List<Integer> expected = new ArrayList<Integer>();
+        if (wordId >= 0) {
+          for (int tag : lexicon.wordSeenTags[wordId])
+            expected.add(tag);
+        }
+        if (wordId < 0 || lexicon.rareWords[wordId]) {
+          for (int i = 0; i < Math.min(numOpen, lexicon.openClassTags.length); i++) {
+            if (!expected.contains(lexicon.openClassTags[i]))
+              expected.add(lexicon.openClassTags[i]);
+          }
+        }
+        int[] candidates = lexicon.getTagDictionary(word, numOpen);
+        List<Integer> actual = new ArrayList<Integer>();
+        for (int tag : candidates)
+          actual.add(tag);
+        assertEquals("candidates of " + word + " with " + numOpen, expected, actual);
+        assertTrue("shared array", lexicon.getTagDictionary(word, numOpen) == candidates);
+      }
+    }
+  }
+}
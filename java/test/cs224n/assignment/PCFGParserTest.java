@@ -0,0 +1,336 @@
+package cs224n.assignment;
+
+import static cs224n.Assert.*;
+
+import cs224n.ling.Tree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PCFGParserTest {
+
+  static List<Tree<String>> annotate(List<Tree<String>> trees) {
+    List<Tree<String>> annotatedTrees = new ArrayList<Tree<String>>();
+    for (Tree<String> tree : trees) {
+      annotatedTrees.add(TreeAnnotations.annotateTree(tree));
+    }
+    return annotatedTrees;
+  }
+
+  /* The parser's best score equals the reference CKY's on every
+   * sentence. */
+  static void checkAgainstReference(List<Tree<String>> trainTrees, List<List<String>> sentences) {
+    PCFGParser parser = new PCFGParser();
+    parser.train(trainTrees);
+    List<Tree<String>> annotatedTrees = annotate(trainTrees);
+    Grammar grammar = new Grammar(annotatedTrees);
+    Lexicon lexicon = new Lexicon(annotatedTrees);
+    int numParsed = 0;
+    for (List<String> sentence : sentences) {
+      double expected = ReferenceCKY.bestScore(grammar, lexicon, sentence);
+      assertEquals("best score of " + sentence, expected, parser.getBestScore(sentence), 1e-8);
+      if (expected > Double.NEGATIVE_INFINITY)
+        numParsed++;
+    }
+    assertTrue("no sentence had a parse", numParsed > 0);
+  }
+
+  public static void testMatchesReferenceOnHandWrittenTreebank() {
+    checkAgainstReference(TestTrees.handWritten(), TestTrees.sentences());
+  }
+
+  public static void testMatchesReferenceOnMiniTest() {
+    List<Tree<String>> trainTrees = TestTrees.miniTest(1, 3);
+    if (trainTrees == null)
+      return;
+    checkAgainstReference(trainTrees, TestTrees.yields(TestTrees.miniTest(4, 4), 12));
+  }
+
+  /* Filling diagonals on a pool and parsing whole sentences concurrently
+   * give exactly the sequential parses. */
+  public static void testThreadedParsesMatchSequential() {
+    List<Tree<String>> trainTrees = TestTrees.miniTest(1, 3);
+    List<List<String>> sentences = (trainTrees == null ? TestTrees.sentences()
+                                    : TestTrees.yields(TestTrees.miniTest(4, 4), 25));
+    if (trainTrees == null)
+      trainTrees = TestTrees.handWritten();
+    PCFGParser sequential = new PCFGParser();
+    sequential.train(trainTrees);
+    PCFGParser threaded = new PCFGParser();
+    threaded.setNumThreads(4);
+    threaded.setTrainThreads(3);
+    threaded.train(trainTrees);
+    List<Tree<String>> batch = sequential.parseAll(sentences, 4);
+    for (int i = 0; i < sentences.size(); i++) {
+      List<String> sentence = sentences.get(i);
+      String expected = sequential.getBestParse(sentence).toString();
+      assertEquals("diagonal-parallel parse", expected, threaded.getBestParse(sentence).toString());
+      assertEquals("parseAll parse", expected, batch.get(i).toString());
+      assertEquals("score", sequential.getBestScore(sentence), threaded.getBestScore(sentence), 0.0);
+    }
+    threaded.setNumThreads(1);
+  }
+
+  /* With the fork threshold at one split point every diagonal of more
+   * than one cell is split into DiagonalTasks, and a sentence long
+   * enough to fork at the default threshold is also parsed; both give
+   * the sequential parses. */
+  public static void testDiagonalTasksMatchSequential() {
+    List<Tree<String>> trainTrees = TestTrees.miniTest(1, 3);
+    List<List<String>> sentences = (trainTrees == null ? TestTrees.sentences()
+                                    : TestTrees.yields(TestTrees.miniTest(4, 4), 15));
+    if (trainTrees == null)
+      trainTrees = TestTrees.handWritten();
+    List<String> longSentence = new ArrayList<String>();
+    for (List<String> sentence : sentences) {
+      if (longSentence.size() > PCFGParser.TASK_WORK / 6)
+        break;
+      longSentence.addAll(sentence);
+    }
+    assertTrue("long sentence forks", longSentence.size() * longSentence.size() / 4
+               > PCFGParser.TASK_WORK);
+    PCFGParser sequential = new PCFGParser();
+    sequential.train(trainTrees);
+    PCFGParser threaded = new PCFGParser();
+    threaded.setNumThreads(4);
+    threaded.train(trainTrees);
+    assertEquals("long parse", sequential.getBestParse(longSentence).toString(),
+                 threaded.getBestParse(longSentence).toString());
+    threaded.taskWork = 1;
+    for (List<String> sentence : sentences) {
+      assertEquals("forked parse", sequential.getBestParse(sentence).toString(),
+                   threaded.getBestParse(sentence).toString());
+      assertEquals("forked score", sequential.getBestScore(sentence),
+                   threaded.getBestScore(sentence), 0.0);
+    }
+    threaded.setNumThreads(1);
+  }
+
+  /* At a small threshold the coarse pass keeps every best parse, and
+   * its reused buffers give the same masks whatever was parsed before:
+   * sentences are parsed forwards and then backwards. */
+  public static void testCoarseToFineKeepsTheBestScores() {
+    List<Tree<String>> trainTrees = TestTrees.miniTest(1, 3);
+    List<List<String>> sentences = (trainTrees == null ? TestTrees.sentences()
+                                    : TestTrees.yields(TestTrees.miniTest(4, 4), 25));
+    if (trainTrees == null)
+      trainTrees = TestTrees.handWritten();
+    PCFGParser exhaustive = new PCFGParser();
+    exhaustive.train(trainTrees);
+    PCFGParser pruned = new PCFGParser();
+    pruned.setCoarseToFineThreshold(1e-4);
+    pruned.train(trainTrees);
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < sentences.size(); i++) {
+        List<String> sentence = sentences.get(pass == 0 ? i : sentences.size() - 1 - i);
+        assertEquals("pruned score of " + sentence, exhaustive.getBestScore(sentence),
+                     pruned.getBestScore(sentence), 1e-8);
+      }
+    }
+    pruned.resetStatistics();
+    exhaustive.resetStatistics();
+    for (List<String> sentence : sentences) {
+      pruned.getBestParse(sentence);
+      exhaustive.getBestParse(sentence);
+    }
+    assertTrue("pruning built fewer edges", pruned.getEdgesBuilt() < exhaustive.getEdgesBuilt());
+  }
+
+  /* When the tag dictionary leaves a sentence without a parse, only
+   * the unpruned reparse counts as built edges; the discarded pass is
+   * reported apart. */
+  public static void testReparsesAreCountedApart() {
+    List<Tree<String>> trainTrees = TestTrees.miniTest(1, 3);
+    List<List<String>> sentences = (trainTrees == null ? TestTrees.sentences()
+                                    : TestTrees.yields(TestTrees.miniTest(4, 4), 25));
+    if (trainTrees == null)
+      trainTrees = TestTrees.handWritten();
+    PCFGParser exhaustive = new PCFGParser();
+    exhaustive.train(trainTrees);
+    PCFGParser restricted = new PCFGParser();
+    restricted.setTagDictionary(1);
+    restricted.train(trainTrees);
+    long totalReparses = 0;
+    for (List<String> sentence : sentences) {
+      exhaustive.resetStatistics();
+      restricted.resetStatistics();
+      exhaustive.getBestParse(sentence);
+      restricted.getBestParse(sentence);
+      if (restricted.getReparses() > 0) {
+        assertEquals("reparsed edges of " + sentence, exhaustive.getEdgesBuilt(),
+                     restricted.getEdgesBuilt());
+        assertTrue("discarded edges", restricted.getEdgesDiscarded() > 0);
+      } else {
+        assertEquals("no discarded edges", 0, restricted.getEdgesDiscarded());
+      }
+      totalReparses += restricted.getReparses();
+    }
+    if (TestTrees.miniTest(1, 1) != null)
+      assertTrue("some sentence was reparsed", totalReparses > 0);
+  }
+
+  /* Parses keep the sentence's words as their yield. */
+  public static void testParsesCoverTheSentence() {
+    PCFGParser parser = new PCFGParser();
+    parser.train(TestTrees.handWritten());
+    for (List<String> sentence : TestTrees.sentences()) {
+      Tree<String> parse = parser.getBestParse(sentence);
+      assertEquals("yield", sentence, parse.getYield());
+      assertEquals("root", "ROOT", parse.getLabel());
+    }
+  }
+
+  /* The triangular layout gives every cell with start < end its own
+   * block of entries, and uses no others. */
+  public static void testChartCellsTileTheTriangle() {
+    int numSymbols = 3;
+    for (int numWords = 1; numWords <= 12; numWords++) {
+      PCFGParser.Chart chart = new PCFGParser.Chart(numSymbols);
+      chart.clear(numWords);
+      int size = (int) PCFGParser.Chart.size(numWords, numSymbols);
+      boolean[] used = new boolean[size];
+      for (int start = 0; start < numWords; start++) {
+        for (int end = start + 1; end <= numWords; end++) {
+          int cell = chart.cell(start, end);
+          assertTrue("cell in range", cell >= 0 && cell + numSymbols <= size);
+          assertTrue("cell not shared", !used[cell]);
+          used[cell] = true;
+        }
+      }
+      for (int entry = 0; entry < size; entry += numSymbols) {
+        assertTrue("entry " + entry + " unused for " + numWords + " words", used[entry]);
+      }
+    }
+  }
+
+  public static void testEmptySentenceGetsAFlatParse() {
+    PCFGParser parser = new PCFGParser();
+    parser.train(TestTrees.handWritten());
+    List<String> empty = new ArrayList<String>();
+    assertEquals("score", Double.NEGATIVE_INFINITY, parser.getBestScore(empty), 0.0);
+    assertEquals("root", "ROOT", parser.getBestParse(empty).getLabel());
+    assertTrue("no words", parser.getBestParse(empty).getPreTerminalYield().isEmpty());
+  }
+
+  /* A loaded model parses exactly as the one saved, with and without
+   * a coarse-to-fine pruner. */
+  public static void testSaveAndLoadRoundTrip() throws IOException {
+    List<Tree<String>> trainTrees = TestTrees.miniTest(1, 3);
+    List<List<String>> sentences = (trainTrees == null ? TestTrees.sentences()
+                                    : TestTrees.yields(TestTrees.miniTest(4, 4), 20));
+    if (trainTrees == null)
+      trainTrees = TestTrees.handWritten();
+    Path directory = Files.createTempDirectory("pcfg");
+    Path path = directory.resolve("model.bin");
+    try {
+      for (double threshold : new double[] { 0.0, 1e-4 }) {
+        PCFGParser saved = new PCFGParser();
+        saved.setCoarseToFineThreshold(threshold);
+        saved.train(trainTrees);
+        saved.save(path);
+        assertTrue("no temporary file", !Files.exists(directory.resolve("model.bin.tmp")));
+        PCFGParser loaded = new PCFGParser();
+        loaded.setCoarseToFineThreshold(threshold);
+        loaded.load(path);
+        for (List<String> sentence : sentences) {
+          assertEquals("loaded score", saved.getBestScore(sentence),
+                       loaded.getBestScore(sentence), 0.0);
+          assertEquals("loaded parse", saved.getBestParse(sentence).toString(),
+                       loaded.getBestParse(sentence).toString());
+        }
+      }
+    } finally {
+      Files.deleteIfExists(path);
+      Files.delete(directory);
+    }
+  }
+
+  /* A truncated model is rejected and the parser keeps its model. */
+  public static void testTruncatedModelIsRejected() throws IOException {
+    PCFGParser parser = new PCFGParser();
+    parser.train(TestTrees.handWritten());
+    List<String> sentence = TestTrees.sentences().get(0);
+    double score = parser.getBestScore(sentence);
+    Path path = Files.createTempFile("pcfg", ".bin");
+    try {
+      parser.save(path);
+      byte[] bytes = Files.readAllBytes(path);
+      Files.write(path, Arrays.copyOf(bytes, bytes.length / 2));
+      boolean rejected = false;
+      try {
+        parser.load(path);
+      } catch (RuntimeException e) {
+        rejected = true;
+      }
+      assertTrue("truncated model rejected", rejected);
+      assertEquals("model kept", score, parser.getBestScore(sentence), 0.0);
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  /* A huge length written over any four bytes of a model is rejected
+   * with a RuntimeException, never by running out of heap, and a
+   * rejected load keeps the model. */
+  public static void testCorruptLengthIsRejected() throws IOException {
+    PCFGParser parser = new PCFGParser();
+    parser.train(TestTrees.handWritten());
+    List<String> sentence = TestTrees.sentences().get(0);
+    double score = parser.getBestScore(sentence);
+    Path path = Files.createTempFile("pcfg", ".bin");
+    Path corruptPath = Files.createTempFile("pcfg", ".bin");
+    try {
+      parser.save(path);
+      byte[] bytes = Files.readAllBytes(path);
+      int numRejected = 0;
+      for (int offset = 8; offset + 4 <= bytes.length; offset++) {
+        byte[] corrupt = bytes.clone();
+        ByteBuffer.wrap(corrupt).putInt(offset, Integer.MAX_VALUE);
+        Files.write(corruptPath, corrupt);
+        try {
+          parser.load(corruptPath);
+          // some fields are not lengths; put the good model back
+          parser.load(path);
+        } catch (RuntimeException e) {
+          numRejected++;
+        }
+      }
+      assertTrue("some lengths rejected", numRejected > 0);
+      assertEquals("model kept", score, parser.getBestScore(sentence), 0.0);
+    } finally {
+      Files.deleteIfExists(path);
+      Files.deleteIfExists(corruptPath);
+    }
+  }
+
+  /* When the finished file cannot be moved into place, the temporary
+   * file is removed. */
+  public static void testFailedSaveLeavesNoTemporaryFile() throws IOException {
+    PCFGParser parser = new PCFGParser();
+    parser.train(TestTrees.handWritten());
+    Path directory = Files.createTempDirectory("pcfg");
+    // a non-empty directory cannot be replaced by the model file
+    Path target = Files.createDirectory(directory.resolve("model.bin"));
+    Path blocker = Files.createFile(target.resolve("file"));
+    try {
+      boolean failed = false;
+      try {
+        parser.save(target);
+      } catch (RuntimeException e) {
+        failed = true;
+      }
+      assertTrue("save failed", failed);
+      assertTrue("no temporary file", !Files.exists(directory.resolve("model.bin.tmp")));
+    } finally {
+      Files.delete(blocker);
+      Files.delete(target);
+      Files.deleteIfExists(directory.resolve("model.bin.tmp"));
+      Files.delete(directory);
+    }
+  }
+}
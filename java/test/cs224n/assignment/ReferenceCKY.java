@@ -0,0 +1,74 @@
+package cs224n.assignment;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A textbook CKY over the String-keyed Grammar and Lexicon, with no
+ * compilation, closure or pruning: each cell is a map from symbol to
+ * best log score, and unary rules are applied until nothing improves.
+ * The tests compare the optimized parsers against it.
+ */
+class ReferenceCKY {
+
+  /* The best log score of ROOT over the sentence, or negative infinity. */
+  static double bestScore(Grammar grammar, Lexicon lexicon, List<String> sentence) {
+    int n = sentence.size();
+    @SuppressWarnings("unchecked")
+    Map<String, Double>[][] chart = (Map<String, Double>[][]) new Map<?, ?>[n + 1][n + 1];
+    for (int start = 0; start < n; start++) {
+      Map<String, Double> cell = new HashMap<String, Double>();
+      for (String tag : lexicon.getAllTags()) {
+        double score = Math.log(lexicon.scoreTagging(sentence.get(start), tag));
+        if (score > Double.NEGATIVE_INFINITY)
+          cell.put(tag, score);
+      }
+      applyUnaries(grammar, cell);
+      chart[start][start + 1] = cell;
+    }
+    for (int span = 2; span <= n; span++) {
+      for (int start = 0; start + span <= n; start++) {
+        int end = start + span;
+        Map<String, Double> cell = new HashMap<String, Double>();
+        for (int split = start + 1; split < end; split++) {
+          Map<String, Double> leftCell = chart[start][split];
+          Map<String, Double> rightCell = chart[split][end];
+          for (Map.Entry<String, Double> left : leftCell.entrySet()) {
+            for (Grammar.BinaryRule rule : grammar.getBinaryRulesByLeftChild(left.getKey())) {
+              Double right = rightCell.get(rule.getRightChild());
+              if (right == null)
+                continue;
+              improve(cell, rule.getParent(), left.getValue() + right + Math.log(rule.getScore()));
+            }
+          }
+        }
+        applyUnaries(grammar, cell);
+        chart[start][end] = cell;
+      }
+    }
+    Double root = (n == 0 ? null : chart[0][n].get("ROOT"));
+    return (root == null ? Double.NEGATIVE_INFINITY : root);
+  }
+
+  private static void applyUnaries(Grammar grammar, Map<String, Double> cell) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Map.Entry<String, Double> child : new HashMap<String, Double>(cell).entrySet()) {
+        for (Grammar.UnaryRule rule : grammar.getUnaryRulesByChild(child.getKey())) {
+          if (improve(cell, rule.getParent(), child.getValue() + Math.log(rule.getScore())))
+            changed = true;
+        }
+      }
+    }
+  }
+
+  private static boolean improve(Map<String, Double> cell, String symbol, double score) {
+    Double old = cell.get(symbol);
+    if (old != null && old >= score)
+      return false;
+    cell.put(symbol, score);
+    return true;
+  }
+}
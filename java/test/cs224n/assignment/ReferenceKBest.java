@@ -0,0 +1,79 @@
+package cs224n.assignment;
+
+import cs224n.util.Index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The k best derivation scores of a sentence by brute force: every node
+ * of the parse hypergraph (a base and a unary node per symbol and span,
+ * as in KBestExtractor) keeps the k best scores of all combinations of
+ * its tails' k best, sorted and cut.  Exact, and far too slow for real
+ * sentences.
+ */
+class ReferenceKBest {
+
+  /* Up to k scores of ROOT over the sentence, best first. */
+  static List<Double> bestScores(CompiledGrammar grammar, Lexicon lexicon,
+                                 List<String> sentence, int k) {
+    int n = sentence.size();
+    int numSymbols = grammar.numSymbols();
+    Index<String> symbols = grammar.getSymbols();
+    @SuppressWarnings("unchecked")
+    List<Double>[][][] base = (List<Double>[][][]) new List<?>[n + 1][n + 1][numSymbols];
+    @SuppressWarnings("unchecked")
+    List<Double>[][][] unary = (List<Double>[][][]) new List<?>[n + 1][n + 1][numSymbols];
+    for (int span = 1; span <= n; span++) {
+      for (int start = 0; start + span <= n; start++) {
+        int end = start + span;
+        for (int symbol = 0; symbol < numSymbols; symbol++) {
+          List<Double> scores = new ArrayList<Double>();
+          if (span == 1) {
+            int tagId = lexicon.getTagIndex().indexOf(symbols.get(symbol));
+            if (tagId >= 0)
+              scores.add(lexicon.getLogScores(sentence.get(start))[tagId]);
+          } else {
+            CompiledGrammar.BinaryRuleTable rules = grammar.binaryByParent;
+            for (int split = start + 1; split < end; split++) {
+              for (int r = rules.start(symbol); r < rules.end(symbol); r++) {
+                for (double left : unary[start][split][rules.left[r]]) {
+                  for (double right : unary[split][end][rules.right[r]]) {
+                    scores.add(left + right + rules.logScore[r]);
+                  }
+                }
+              }
+            }
+          }
+          base[start][end][symbol] = best(scores, k);
+        }
+        for (int symbol = 0; symbol < numSymbols; symbol++) {
+          List<Double> scores = new ArrayList<Double>();
+          CompiledGrammar.UnaryClosure closure = grammar.unaryClosureByChild;
+          for (int child = 0; child < numSymbols; child++) {
+            for (int r = closure.start(child); r < closure.end(child); r++) {
+              if (closure.parent[r] != symbol)
+                continue;
+              for (double score : base[start][end][child]) {
+                scores.add(score + closure.logScore[r]);
+              }
+            }
+          }
+          unary[start][end][symbol] = best(scores, k);
+        }
+      }
+    }
+    return unary[0][n][symbols.indexOf("ROOT")];
+  }
+
+  private static List<Double> best(List<Double> scores, int k) {
+    List<Double> finite = new ArrayList<Double>();
+    for (double score : scores) {
+      if (score > Double.NEGATIVE_INFINITY)
+        finite.add(score);
+    }
+    Collections.sort(finite, Collections.reverseOrder());
+    return new ArrayList<Double>(finite.subList(0, Math.min(k, finite.size())));
+  }
+}
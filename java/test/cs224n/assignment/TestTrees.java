@@ -0,0 +1,82 @@
+package cs224n.assignment;
+
+import cs224n.Assert;
+import cs224n.io.PennTreebankReader;
+import cs224n.ling.Tree;
+import cs224n.ling.Trees;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Training data shared by the parser tests: a small hand-written
+ * treebank with PP-attachment and unary ambiguity, and miniTest when
+ * the data directory is available.
+ */
+class TestTrees {
+
+  static final String[] HAND_WRITTEN = {
+    "( (S (NP (DT the) (NN dog)) (VP (VBD saw) (NP (DT a) (NN cat))) (. .)))",
+    "( (S (NP (DT a) (NN cat)) (VP (VBD saw) (NP (NP (DT the) (NN dog)) (PP (IN with) (NP (DT a) (NN telescope))))) (. .)))",
+    "( (S (NP (PRP she)) (VP (VBD saw) (NP (DT the) (NN man)) (PP (IN with) (NP (DT the) (NN telescope)))) (. .)))",
+    "( (S (NP (NNP John)) (VP (VBD ate) (NP (NN fish))) (. .)))",
+    "( (S (NP (DT the) (JJ old) (NN man)) (VP (VBD walked)) (. .)))",
+    "( (S (NP (PRP he)) (VP (VBD ate) (NP (DT the) (NN fish)) (PP (IN in) (NP (DT the) (NN park)))) (. .)))",
+    "( (S (NP (NNS dogs)) (VP (VBP bark)) (. .)))",
+    "( (S (S (NP (PRP she)) (VP (VBD walked))) (CC and) (S (NP (PRP he)) (VP (VBD ate))) (. .)))",
+    "( (S (NP (NP (DT the) (NN man)) (PP (IN in) (NP (DT the) (NN park)))) (VP (VBD saw) (NP (PRP her))) (. .)))",
+    "( (S (ADVP (RB yesterday)) (NP (PRP she)) (VP (VBD saw) (NP (DT a) (JJ big) (NN dog))) (. .)))",
+  };
+
+  /* Sentences covering seen, rare and unseen words. */
+  static final String[][] SENTENCES = {
+    { "the", "dog", "saw", "a", "cat", "." },
+    { "she", "saw", "the", "dog", "with", "a", "telescope", "." },
+    { "the", "man", "in", "the", "park", "ate", "the", "fish", "." },
+    { "John", "walked", "." },
+    { "a", "big", "cat", "saw", "the", "old", "man", "in", "the", "park", "." },
+    { "yesterday", "Mary", "ate", "a", "sandwich", "." },
+    { "she", "walked", "and", "he", "barked", "." },
+  };
+
+  static List<Tree<String>> handWritten() {
+    List<Tree<String>> trees = new ArrayList<Tree<String>>();
+    Trees.TreeTransformer<String> normalizer = new Trees.StandardTreeNormalizer();
+    for (String tree : HAND_WRITTEN) {
+      trees.add(normalizer.transformTree(
+          new Trees.PennTreeReader(new StringReader(tree)).next()));
+    }
+    return trees;
+  }
+
+  static List<List<String>> sentences() {
+    List<List<String>> sentences = new ArrayList<List<String>>();
+    for (String[] sentence : SENTENCES) {
+      sentences.add(Arrays.asList(sentence));
+    }
+    return sentences;
+  }
+
+  /* The normalized trees of miniTest files low to high, or null without
+   * the data directory. */
+  static List<Tree<String>> miniTest(int low, int high) {
+    File data = Assert.dataDirectory();
+    if (data == null)
+      return null;
+    return PennTreebankReader.readTrees(new File(data, "miniTest").getPath(), low, high,
+                                        new Trees.StandardTreeNormalizer(), 1);
+  }
+
+  /* Yields of the trees with at most maxLength words. */
+  static List<List<String>> yields(List<Tree<String>> trees, int maxLength) {
+    List<List<String>> sentences = new ArrayList<List<String>>();
+    for (Tree<String> tree : trees) {
+      if (tree.getYield().size() <= maxLength)
+        sentences.add(tree.getYield());
+    }
+    return sentences;
+  }
+}
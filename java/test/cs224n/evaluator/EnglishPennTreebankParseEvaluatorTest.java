@@ -0,0 +1,169 @@
+package cs224n.evaluator;
+
+import static cs224n.Assert.*;
+
+import cs224n.Assert;
+import cs224n.io.PennTreebankReader;
+import cs224n.ling.Tree;
+import cs224n.ling.Trees;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class EnglishPennTreebankParseEvaluatorTest {
+
+  static final String[] GOLD = {
+    "(ROOT (S (NP (DT the) (NN dog)) (VP (VBD saw) (NP (DT a) (NN cat))) (. .)))",
+    "(ROOT (S (NP (DT the) (NN can)) (VP (VBD fell))))",
+    "(ROOT (S (NP (PRP she)) (VP (VBD saw) (NP (DT the) (NN man)) (PP (IN with) (NP (DT the) (NN telescope)))) (. .)))",
+    "(ROOT (S (`` ``) (NP (NNP John)) (, ,) (VP (VBD ate) (NP (NP (NN fish)))) ('' '') (. .)))",
+  };
+
+  static final String[] GUESS = {
+    "(ROOT (S (NP (DT the) (NN dog)) (VP (VBD saw) (NP (DT a) (NN cat))) (. .)))",
+    "(ROOT (S (NP (DT the)) (VP (MB can) (VP (VBD fell)))))",
+    "(ROOT (S (NP (PRP she)) (VP (VBD saw) (NP (NP (DT the) (NN man)) (PP (IN with) (NP (DT the) (NN telescope))))) (. .)))",
+    "(ROOT (S (`` ``) (NP (NNP John)) (, ,) (VP (VBD ate) (NP (NN fish))) ('' '') (. .)))",
+  };
+
+  static EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> newEval() {
+    return new EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>(
+        Collections.singleton("ROOT"),
+        new HashSet<String>(Arrays.asList(new String[] {"''", "``", ".", ":", ","})));
+  }
+
+  static List<Tree<String>> read(String[] trees) {
+    List<Tree<String>> result = new ArrayList<Tree<String>>();
+    for (String tree : trees) {
+      result.add(new Trees.PennTreeReader(new StringReader(tree)).next());
+    }
+    return result;
+  }
+
+  /* Copies the tree, dropping some phrasal nodes (their children join
+   * the parent) and relabeling others, to make a plausible wrong parse. */
+  static List<Tree<String>> perturb(Tree<String> tree, Random random) {
+    if (tree.isLeaf() || tree.isPreTerminal())
+      return Collections.singletonList(tree);
+    List<Tree<String>> children = new ArrayList<Tree<String>>();
+    for (Tree<String> child : tree.getChildren()) {
+      children.addAll(perturb(child, random));
+    }
+    double draw = random.nextDouble();
+    if (draw < 0.15 && !tree.getLabel().equals("ROOT"))
+      return children;
+    String label = (draw < 0.25 ? "X" : tree.getLabel());
+    return Collections.singletonList(new Tree<String>(label, children));
+  }
+
+  /* Hand-written pairs, then each miniTest tree against a perturbed
+   * copy of itself when the data directory is available. */
+  static List<Tree<String>[]> pairs() {
+    List<Tree<String>[]> pairs = new ArrayList<Tree<String>[]>();
+    List<Tree<String>> guesses = read(GUESS);
+    List<Tree<String>> golds = read(GOLD);
+    for (int i = 0; i < golds.size(); i++) {
+      pairs.add(pair(guesses.get(i), golds.get(i)));
+    }
+    File data = Assert.dataDirectory();
+    if (data != null) {
+      Random random = new Random(17);
+      for (Tree<String> gold : PennTreebankReader.readTrees(
+               new File(data, "miniTest").getPath(), 1, 4, new Trees.StandardTreeNormalizer(), 1)) {
+        pairs.add(pair(perturb(gold, random).get(0), gold));
+      }
+    }
+    return pairs;
+  }
+
+  @SuppressWarnings("unchecked")
+  static Tree<String>[] pair(Tree<String> guess, Tree<String> gold) {
+    return (Tree<String>[]) new Tree<?>[] { guess, gold };
+  }
+
+  static String display(EnglishPennTreebankParseEvaluator.AbstractEval<String> eval) {
+    StringWriter out = new StringWriter();
+    eval.display(true, new PrintWriter(out, true));
+    return out.toString();
+  }
+
+  /* Scores with the set-based AbstractEval.evaluate(), building its
+   * constituents with LabeledConstituentEval.makeObjects(). */
+  static class SetEval extends EnglishPennTreebankParseEvaluator.AbstractEval<String> {
+    final EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> constituents = newEval();
+
+    Set<Object> makeObjects(Tree<String> tree) {
+      return constituents.makeObjects(tree);
+    }
+  }
+
+  /* The packed evaluate() prints the same line for every sentence, and
+   * the same totals, as the makeObjects() sets. */
+  public static void testPackedCountsMatchMakeObjects() {
+    EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> packed = newEval();
+    SetEval sets = new SetEval();
+    for (Tree<String>[] pair : pairs()) {
+      StringWriter packedLine = new StringWriter();
+      packed.evaluate(pair[0], pair[1], new PrintWriter(packedLine, true));
+      StringWriter setLine = new StringWriter();
+      sets.evaluate(pair[0], pair[1], new PrintWriter(setLine, true));
+      assertEquals(pair[1].toString(), setLine.toString(), packedLine.toString());
+    }
+    assertEquals("totals", display(sets), display(packed));
+  }
+
+  /* Threads scoring into one shared Eval, and threads scoring into
+   * their own Evals that are then merged, both give the sequential
+   * totals. */
+  public static void testConcurrentAndMergedTotalsMatchSequential() throws InterruptedException {
+    final List<Tree<String>[]> pairs = pairs();
+    EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> sequential = newEval();
+    for (Tree<String>[] pair : pairs) {
+      sequential.evaluate(pair[0], pair[1], null);
+    }
+    final int numThreads = 4;
+    final EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> shared = newEval();
+    final List<EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>> own =
+        new ArrayList<EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>>();
+    Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final int first = t;
+      final EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval = newEval();
+      own.add(eval);
+      threads[t] = new Thread() {
+        public void run() {
+          for (int repeat = 0; repeat < 50; repeat++) {
+            for (int i = first; i < pairs.size(); i += numThreads) {
+              shared.evaluate(pairs.get(i)[0], pairs.get(i)[1], null);
+              if (repeat == 0)
+                eval.evaluate(pairs.get(i)[0], pairs.get(i)[1], null);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> merged = newEval();
+    for (EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval : own) {
+      merged.merge(eval);
+    }
+    assertEquals("merged", display(sequential), display(merged));
+    EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> repeated = newEval();
+    for (int repeat = 0; repeat < 50; repeat++) {
+      repeated.merge(sequential);
+    }
+    assertEquals("shared", display(repeated), display(shared));
+  }
+}
@@ -0,0 +1,110 @@
+package cs224n.io;
+
+import static cs224n.Assert.*;
+
+import cs224n.ling.Tree;
+import cs224n.ling.Trees;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TreebankCacheTest {
+
+  static final String TREEBANK =
+      "( (S (NP (DT the) (NN dog)) (VP (VBD saw) (NP (DT a) (NN cat))) (. .)))\n"
+      + "( (S (NP-SBJ (PRP she)) (VP (VBD walked)) (. .)))\n"
+      + "( (S (NP (NNP John)) (VP (VBD ate) (NP (NN fish))) (. .)))\n";
+
+  static List<Tree<String>> trees() {
+    List<Tree<String>> trees = new ArrayList<Tree<String>>();
+    Trees.PennTreeReader reader = new Trees.PennTreeReader(new StringReader(TREEBANK));
+    while (reader.hasNext()) {
+      trees.add(reader.next());
+    }
+    return trees;
+  }
+
+  static File tempDirectory() throws IOException {
+    return Files.createTempDirectory("treecache").toFile();
+  }
+
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  public static void testRoundTrip() throws IOException {
+    File directory = tempDirectory();
+    try {
+      File cacheFile = new File(directory, "trees");
+      List<Tree<String>> trees = trees();
+      TreebankCache.write(cacheFile, trees, 42L);
+      assertEquals("trees", trees.toString(), TreebankCache.read(cacheFile, 42L).toString());
+      assertTrue("stale fingerprint", TreebankCache.read(cacheFile, 43L) == null);
+      assertTrue("no temporary file", !new File(directory, "trees.tmp").exists());
+    } finally {
+      delete(directory);
+    }
+  }
+
+  /* Every truncation, and a file whose contents are overwritten, reads
+   * as no cache rather than throwing. */
+  public static void testDamagedFilesReadAsMissing() throws IOException {
+    File directory = tempDirectory();
+    try {
+      File cacheFile = new File(directory, "trees");
+      TreebankCache.write(cacheFile, trees(), 42L);
+      byte[] bytes = Files.readAllBytes(cacheFile.toPath());
+      File damaged = new File(directory, "damaged");
+      for (int length = 0; length < bytes.length; length++) {
+        Files.write(damaged.toPath(), Arrays.copyOf(bytes, length));
+        assertTrue("truncated to " + length, TreebankCache.read(damaged, 42L) == null);
+      }
+      byte[] overwritten = bytes.clone();
+      Arrays.fill(overwritten, 16, overwritten.length - 4, (byte) 0xff);
+      Files.write(damaged.toPath(), overwritten);
+      assertTrue("overwritten", TreebankCache.read(damaged, 42L) == null);
+    } finally {
+      delete(directory);
+    }
+  }
+
+  /* readTrees() rebuilds a damaged cache file from the treebank. */
+  public static void testReadTreesRebuildsDamagedCache() throws IOException {
+    File directory = tempDirectory();
+    try {
+      File data = new File(directory, "data");
+      data.mkdirs();
+      Files.write(new File(data, "wsj_0001.mrg").toPath(),
+                  TREEBANK.getBytes(StandardCharsets.UTF_8));
+      File cacheDir = new File(directory, "cache");
+      Trees.TreeTransformer<String> normalizer = new Trees.StandardTreeNormalizer();
+      String expected = PennTreebankReader.readTrees(data.getPath(), 1, 2, normalizer, 1)
+          .toString();
+      assertEquals("first read", expected, TreebankCache.readTrees(
+          cacheDir, data.getPath(), 1, 2, normalizer, 1).toString());
+      File[] cacheFiles = cacheDir.listFiles();
+      assertEquals("cache files", 1, cacheFiles.length);
+      assertTrue("named by class", cacheFiles[0].getName().contains(
+          Trees.StandardTreeNormalizer.class.getName()));
+      byte[] bytes = Files.readAllBytes(cacheFiles[0].toPath());
+      Files.write(cacheFiles[0].toPath(), Arrays.copyOf(bytes, bytes.length - 7));
+      assertEquals("rebuilt read", expected, TreebankCache.readTrees(
+          cacheDir, data.getPath(), 1, 2, normalizer, 1).toString());
+      assertEquals("rewritten cache", (long) bytes.length, cacheFiles[0].length());
+    } finally {
+      delete(directory);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package cs224n.ling;
+
+import static cs224n.Assert.*;
+
+import cs224n.util.StringInterner;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+public class TreesTest {
+
+  static final String CORPUS =
+    "( (S (NP (DT the) (NN caf\u00e9)) (VP (VBD closed))))\n\n"
+    + "((NP\t(NNP Paris) (NN caf\u00e9)))\r\n"
+    + "(ROOT (X (Y y)))  ";
+
+  /* The mapped reader, scanning a direct buffer from a position past
+   * some leading bytes, reads the same trees as PennTreeReader, and
+   * leaves the buffer's own position alone. */
+  public static void testMappedReaderMatchesPennTreeReader() {
+    byte[] corpus = CORPUS.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer bytes = ByteBuffer.allocateDirect(corpus.length + 3);
+    bytes.put("xx)".getBytes(StandardCharsets.US_ASCII)).put(corpus);
+    bytes.position(3);
+    StringInterner interner = new StringInterner();
+    Iterator<Tree<String>> expected = new Trees.PennTreeReader(new StringReader(CORPUS));
+    Iterator<Tree<String>> mapped = new Trees.MappedPennTreeReader(bytes, interner);
+    int numTrees = 0;
+    while (expected.hasNext()) {
+      assertTrue("mapped tree " + numTrees, mapped.hasNext());
+      assertEquals("tree " + numTrees, expected.next().toString(), mapped.next().toString());
+      numTrees++;
+    }
+    assertTrue("no extra trees", !mapped.hasNext());
+    assertEquals("trees", 3, numTrees);
+    assertEquals("buffer position", 3, bytes.position());
+    assertTrue("shared word", interner.intern("caf\u00e9") == interner.intern(
+        ByteBuffer.wrap("caf\u00e9".getBytes(StandardCharsets.UTF_8)), 0, 5));
+  }
+}
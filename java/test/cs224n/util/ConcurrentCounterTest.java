@@ -0,0 +1,38 @@
+package cs224n.util;
+
+import static cs224n.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConcurrentCounterTest {
+
+  /* Increments racing from several threads are all counted. */
+  public static void testConcurrentIncrementsAreAllCounted() throws InterruptedException {
+    final ConcurrentCounter<String> counter = new ConcurrentCounter<String>();
+    final int numThreads = 4;
+    final int numIncrements = 20000;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < numThreads; i++) {
+      threads.add(new Thread() {
+        public void run() {
+          for (int j = 0; j < numIncrements; j++) {
+            counter.incrementCount("key" + (j % 10), 1.0);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals("keys", 10, counter.size());
+    assertEquals("key3", numThreads * numIncrements / 10.0, counter.getCount("key3"), 0.0);
+    assertEquals("total", (double) numThreads * numIncrements, counter.totalCount(), 0.0);
+    Counter<String> snapshot = counter.toCounter();
+    assertEquals("snapshot total", counter.totalCount(), snapshot.totalCount(), 0.0);
+    assertEquals("missing key", 0.0, counter.getCount("absent"), 0.0);
+  }
+}
@@ -0,0 +1,133 @@
+package cs224n.util;
+
+import static cs224n.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class CounterTest {
+
+  /* A key whose hash code is shared with many others, so the table has
+   * to probe past colliding slots. */
+  static class CollidingKey {
+    final int id;
+
+    CollidingKey(int id) {
+      this.id = id;
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof CollidingKey && ((CollidingKey) o).id == id;
+    }
+
+    public int hashCode() {
+      return id % 3;
+    }
+
+    public String toString() {
+      return "key" + id;
+    }
+  }
+
+  /* Strings, colliding keys and null; fresh copies of equal keys are
+   * made on each call, so lookups go through equals(). */
+  static List<Object> keys(int numKeys) {
+    List<Object> keys = new ArrayList<Object>();
+    keys.add(null);
+    for (int i = 0; i < numKeys; i++) {
+      keys.add(i % 2 == 0 ? new String("word" + i) : new CollidingKey(i));
+    }
+    return keys;
+  }
+
+  /* Applies the same random sets and increments to the counter and to a
+   * HashMap, checking lookups as it goes and the whole contents at the
+   * end.  Counts are small integers, so sums are exact. */
+  static void checkAgainstHashMap(Counter<Object> counter, long seed) {
+    Random random = new Random(seed);
+    List<Object> keys = keys(300);
+    List<Object> lookups = keys(300);
+    Map<Object, Double> reference = new HashMap<Object, Double>();
+    for (int step = 0; step < 20000; step++) {
+      int i = random.nextInt(keys.size());
+      Object key = keys.get(i);
+      double count = random.nextInt(11) - 3;
+      switch (random.nextInt(3)) {
+      case 0:
+        counter.setCount(key, count);
+        reference.put(key, count);
+        break;
+      case 1:
+        counter.incrementCount(key, count);
+        reference.put(key, (reference.containsKey(key) ? reference.get(key) : 0.0) + count);
+        break;
+      default:
+        Object lookup = lookups.get(i);
+        assertEquals("contains " + lookup, reference.containsKey(lookup),
+                     counter.containsKey(lookup));
+        assertEquals("count of " + lookup,
+                     (reference.containsKey(lookup) ? reference.get(lookup) : 0.0),
+                     counter.getCount(lookup), 0.0);
+      }
+    }
+    assertEquals("size", reference.size(), counter.size());
+    assertEquals("keys", reference.keySet(), new HashSet<Object>(counter.keySet()));
+    double total = 0.0;
+    double max = Double.NEGATIVE_INFINITY;
+    for (Map.Entry<Object, Double> entry : reference.entrySet()) {
+      assertEquals("count of " + entry.getKey(), entry.getValue(),
+                   counter.getCount(entry.getKey()), 0.0);
+      total += entry.getValue();
+      max = Math.max(max, entry.getValue());
+    }
+    assertEquals("total", total, counter.totalCount(), 0.0);
+    assertEquals("max", max, counter.getCount(counter.argMax()), 0.0);
+    assertTrue("absent key", !counter.containsKey("absent"));
+    assertEquals("absent count", 0.0, counter.getCount("absent"), 0.0);
+  }
+
+  public static void testTableCounterMatchesHashMap() {
+    checkAgainstHashMap(new Counter<Object>(), 1);
+  }
+
+  public static void testAggregatingCounterMatchesHashMap() {
+    checkAgainstHashMap(new Counter<Object>(true), 2);
+  }
+
+  public static void testMapFactoryCounterMatchesHashMap() {
+    checkAgainstHashMap(new Counter<Object>(new MapFactory.HashMapFactory<Object, Double>()), 3);
+  }
+
+  /* The table's own put() and add() return values, and its key set,
+   * across several rehashes. */
+  public static void testObjectDoubleHashMapMatchesHashMap() {
+    Random random = new Random(4);
+    List<Object> keys = keys(1000);
+    ObjectDoubleHashMap<Object> table = new ObjectDoubleHashMap<Object>();
+    Map<Object, Double> reference = new HashMap<Object, Double>();
+    for (int step = 0; step < 20000; step++) {
+      Object key = keys.get(random.nextInt(keys.size()));
+      double value = random.nextInt(11) - 3;
+      double old = (reference.containsKey(key) ? reference.get(key) : 0.0);
+      if (random.nextBoolean()) {
+        assertEquals("put " + key, old, table.put(key, value), 0.0);
+        reference.put(key, value);
+      } else {
+        assertEquals("add " + key, old + value, table.add(key, value), 0.0);
+        reference.put(key, old + value);
+      }
+      assertEquals("size", reference.size(), table.size());
+    }
+    assertEquals("keys", reference.keySet(), new HashSet<Object>(table.keySet()));
+    assertEquals("key set size", reference.size(), table.keySet().size());
+    for (Object key : keys(1000)) {
+      assertEquals("contains " + key, reference.containsKey(key), table.containsKey(key));
+      assertEquals("key set contains " + key, reference.containsKey(key),
+                   table.keySet().contains(key));
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package cs224n.util;
+
+import static cs224n.Assert.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Set;
+
+public class IntCounterTest {
+
+  /* Keys for a hashed counter: negative, extreme and clustered values. */
+  static final int[] HASHED_KEYS = { 0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 16,
+                                     2 << 16, 3 << 16, -65536, 12345 };
+
+  static int hashedKey(Random random) {
+    if (random.nextInt(4) == 0)
+      return HASHED_KEYS[random.nextInt(HASHED_KEYS.length)];
+    return random.nextInt(400) - 200;
+  }
+
+  static Set<Integer> keys(PrimitiveIterator.OfInt iterator) {
+    Set<Integer> keys = new HashSet<Integer>();
+    while (iterator.hasNext()) {
+      assertTrue("repeated key", keys.add(iterator.nextInt()));
+    }
+    return keys;
+  }
+
+  /* Applies the same random sets and increments to the counter and to a
+   * HashMap, checking lookups as it goes and the whole contents at the
+   * end.  Counts are small integers, so sums are exact. */
+  static void checkAgainstHashMap(IntCounter counter, boolean dense, long seed) {
+    Random random = new Random(seed);
+    Map<Integer, Double> reference = new HashMap<Integer, Double>();
+    for (int step = 0; step < 20000; step++) {
+      int key = (dense ? random.nextInt(300) : hashedKey(random));
+      double count = random.nextInt(11) - 3;
+      switch (random.nextInt(3)) {
+      case 0:
+        counter.setCount(key, count);
+        reference.put(key, count);
+        break;
+      case 1:
+        counter.incrementCount(key, count);
+        reference.put(key, (reference.containsKey(key) ? reference.get(key) : 0.0) + count);
+        break;
+      default:
+        assertEquals("contains " + key, reference.containsKey(key), counter.containsKey(key));
+        assertEquals("count of " + key, (reference.containsKey(key) ? reference.get(key) : 0.0),
+                     counter.getCount(key), 0.0);
+      }
+    }
+    assertEquals("size", reference.size(), counter.size());
+    assertEquals("keys", reference.keySet(), keys(counter.keySet()));
+    double total = 0.0;
+    double max = Double.NEGATIVE_INFINITY;
+    for (Map.Entry<Integer, Double> entry : reference.entrySet()) {
+      assertEquals("count of " + entry.getKey(), entry.getValue(),
+                   counter.getCount(entry.getKey()), 0.0);
+      total += entry.getValue();
+      max = Math.max(max, entry.getValue());
+    }
+    assertEquals("total", total, counter.totalCount(), 0.0);
+    assertEquals("max", max, counter.getCount(counter.argMax()), 0.0);
+    assertTrue("absent key", !counter.containsKey(-7777));
+    assertEquals("absent count", 0.0, counter.getCount(-7777), 0.0);
+
+    IntCounter copy = (dense ? new IntCounter(1) : new IntCounter());
+    copy.incrementAll(counter);
+    copy.incrementAll(counter);
+    assertEquals("copied keys", reference.keySet(), keys(copy.keySet()));
+    for (Map.Entry<Integer, Double> entry : reference.entrySet()) {
+      assertEquals("doubled count of " + entry.getKey(), 2 * entry.getValue(),
+                   copy.getCount(entry.getKey()), 0.0);
+    }
+  }
+
+  public static void testHashedCounterMatchesHashMap() {
+    checkAgainstHashMap(new IntCounter(), false, 1);
+  }
+
+  public static void testDenseCounterMatchesHashMap() {
+    checkAgainstHashMap(new IntCounter(4), true, 2);
+  }
+
+  public static void testEmptyCounter() {
+    IntCounter counter = new IntCounter();
+    assertTrue("empty", counter.isEmpty());
+    assertEquals("argMax", -1, counter.argMax());
+    assertTrue("no keys", !counter.keySet().hasNext());
+    assertEquals("dense argMax", -1, new IntCounter(8).argMax());
+  }
+
+  /* Counter maps with hashed and dense sub-counters agree with a map
+   * from (key, value) pairs. */
+  public static void testCounterMapMatchesHashMap() {
+    IntCounterMap[] maps = { new IntCounterMap(), new IntCounterMap(4) };
+    for (int m = 0; m < maps.length; m++) {
+      IntCounterMap map = maps[m];
+      Random random = new Random(3 + m);
+      Map<Long, Double> reference = new HashMap<Long, Double>();
+      Set<Integer> referenceKeys = new HashSet<Integer>();
+      for (int step = 0; step < 20000; step++) {
+        int key = random.nextInt(40);
+        int value = random.nextInt(100);
+        long pair = ((long) key << 32) | value;
+        double count = random.nextInt(11) - 3;
+        double old = (reference.containsKey(pair) ? reference.get(pair) : 0.0);
+        switch (random.nextInt(3)) {
+        case 0:
+          map.setCount(key, value, count);
+          reference.put(pair, count);
+          referenceKeys.add(key);
+          break;
+        case 1:
+          map.incrementCount(key, value, count);
+          reference.put(pair, old + count);
+          referenceKeys.add(key);
+          break;
+        default:
+          assertEquals("contains " + key, referenceKeys.contains(key), map.containsKey(key));
+          assertEquals("count of " + key + "," + value, old, map.getCount(key, value), 0.0);
+        }
+      }
+      assertEquals("size", referenceKeys.size(), map.size());
+      assertEquals("total size", reference.size(), map.totalSize());
+      assertEquals("keys", referenceKeys, keys(map.keySet()));
+      double total = 0.0;
+      for (double count : reference.values()) {
+        total += count;
+      }
+      assertEquals("total", total, map.totalCount(), 0.0);
+      assertEquals("missing key", 0.0, map.getCount(-1, 0), 0.0);
+      assertTrue("missing key absent", !map.containsKey(1000));
+    }
+  }
+}